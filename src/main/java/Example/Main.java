@@ -27,13 +27,9 @@ public class Main {
         School school = new School("Coding School", "New York City");
         entityManager.persist(school);
 
-        school.setId(1);
-
         Teacher teacher = new Teacher("Georgi", "Georgiev", 32, school);
         entityManager.persist(teacher);
 
-        teacher.setId(1);
-
         Course course = new Course(524, "Java Programming", 499.99, school, teacher);
         entityManager.persist(course);
 
@@ -0,0 +1,21 @@
+package ORM.Annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the annotated entity as cacheable in the
+ * second-level cache shared by the EntityManager instances.
+ *
+ * Best suited for entities that are read much more often than
+ * they are changed. The entities are cached only when the
+ * EntityManager is created with an EntityCache, and only when they are
+ * read with SQL generated by the EntityManager (not with createQuery() or stream()).
+ */
+
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Cacheable {
+}
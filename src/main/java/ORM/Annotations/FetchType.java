@@ -0,0 +1,22 @@
+package ORM.Annotations;
+
+/**
+ * Defines when the entity referenced by
+ * a foreign key field is retrieved from the database.
+ *
+ * @see ForeignKey
+ */
+public enum FetchType {
+
+    /**
+     * The referenced entity is retrieved together with the entity
+     * that references it.
+     */
+    EAGER,
+
+    /**
+     * The referenced entity is retrieved the first time it is accessed.
+     * Only fields of type ORM.Ref can be fetched lazily.
+     */
+    LAZY
+}
@@ -35,4 +35,14 @@ public @interface ForeignKey {
      * False by default.
      */
     boolean unique() default false;
+
+    /**
+     * (Optional) When the referenced entity should be retrieved
+     * from the database. EAGER by default.
+     *
+     * LAZY can be used only on fields of type ORM.Ref, which keep
+     * the foreign key value and retrieve the referenced entity
+     * the first time its get() method is called.
+     */
+    FetchType fetch() default FetchType.EAGER;
 }
@@ -0,0 +1,22 @@
+package ORM.Annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the annotated int or long field as the version of the entity,
+ * used for optimistic locking. An entity can have only one version field.
+ *
+ * The EntityManager updates or deletes the entity only if the version
+ * in the database is still the version of the entity, and increments it
+ * with every update. Otherwise an OptimisticLockException is thrown,
+ * since the entity was changed by someone else in the meantime.
+ */
+
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Version {
+    String name() default "";
+}
@@ -0,0 +1,21 @@
+package ORM;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads the value of a column from a result set, by the position of the column,
+ * with the typed getter of ResultSet for the Java type of the field.
+ *
+ * The value is returned boxed, since every row is kept as an Object[] state,
+ * which is shared by the second-level cache, the snapshots of the persistence
+ * context and the batched loading of foreign keys. Primitive fields are set
+ * from the boxed value without reflection, but the value itself is boxed once.
+ *
+ * @see JdbcValues#decoderFor(Class)
+ */
+@FunctionalInterface
+interface ColumnDecoder {
+
+    Object decode(ResultSet resultSet, int position) throws SQLException;
+}
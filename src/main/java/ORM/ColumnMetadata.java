@@ -0,0 +1,219 @@
+package ORM;
+
+import ORM.Annotations.Column;
+import ORM.Annotations.FetchType;
+import ORM.Annotations.ForeignKey;
+import ORM.Exceptions.EntityManagerException;
+
+import java.lang.reflect.Field;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Immutable description of a single mapped column of an entity.
+ *
+ * Holds everything the EntityManager needs to know about a field
+ * annotated with Id, Column or ForeignKey, so that the annotations
+ * are read only once per class instead of once per operation.
+ *
+ * @see EntityMetadata
+ */
+final class ColumnMetadata {
+
+    private final Field field;
+    private final int index;
+    private final String name;
+    private final String sqlType;
+    private final String constraints;
+    private final boolean primaryKey;
+    private final boolean generated;
+    private final boolean version;
+    private final Class<?> referencedClass;
+    private final FetchType fetch;
+    private final ColumnDecoder decoder;
+
+    ColumnMetadata(Field field, int index, String name, String sqlType, String constraints,
+                   boolean primaryKey, boolean generated, boolean version, Class<?> referencedClass, FetchType fetch) {
+        this.field = field;
+        this.index = index;
+        this.name = name;
+        this.sqlType = sqlType;
+        this.constraints = constraints;
+        this.primaryKey = primaryKey;
+        this.generated = generated;
+        this.version = version;
+        this.referencedClass = referencedClass;
+        this.fetch = fetch;
+
+        // foreign keys are read as the primary key of the referenced entity
+        this.decoder = JdbcValues.decoderFor(referencedClass != null ? Long.class : field.getType());
+
+        field.setAccessible(true);
+    }
+
+    /**
+     * The field of the entity class, already made accessible.
+     */
+    Field getField() {
+        return field;
+    }
+
+    /**
+     * The position of the column among all columns of its entity.
+     */
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * The name of the database column.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * The SQL type of the database column (for example "varchar(100)").
+     */
+    String getSqlType() {
+        return sqlType;
+    }
+
+    /**
+     * The constraints of the column, used when creating its table
+     * (for example "not null unique" or "primary key auto_increment").
+     */
+    String getConstraints() {
+        return constraints;
+    }
+
+    boolean isPrimaryKey() {
+        return primaryKey;
+    }
+
+    /**
+     * Whether the column is a primary key annotated with GeneratedValue.
+     */
+    boolean isGenerated() {
+        return generated;
+    }
+
+    /**
+     * Whether the column is the version of the entity, annotated with Version.
+     */
+    boolean isVersion() {
+        return version;
+    }
+
+    boolean isForeignKey() {
+        return referencedClass != null;
+    }
+
+    /**
+     * The entity class referenced by a foreign key column;
+     * Null if the column is not a foreign key.
+     */
+    Class<?> getReferencedClass() {
+        return referencedClass;
+    }
+
+    /**
+     * Whether the foreign key field is of type Ref,
+     * instead of the type of the referenced entity.
+     */
+    boolean isReference() {
+        return field.getType() == Ref.class;
+    }
+
+    /**
+     * Whether the referenced entity of a foreign key column
+     * is retrieved only when it is first accessed.
+     */
+    boolean isLazy() {
+        return fetch == FetchType.LAZY;
+    }
+
+    /**
+     * Reads the value of the column at the given position of the current row,
+     * as the type of the field (or as a Long for a foreign key).
+     */
+    Object decode(ResultSet resultSet, int position) throws SQLException {
+        return decoder.decode(resultSet, position);
+    }
+
+    Object getValue(Object entity) {
+        try {
+            return field.get(entity);
+        } catch (IllegalAccessException e) {
+            throw new EntityManagerException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the value of an int or long field (for example a primary key) as a long.
+     */
+    long getLong(Object entity) {
+        try {
+            return field.getType().isPrimitive() ? field.getLong(entity) : ((Number) field.get(entity)).longValue();
+        } catch (IllegalAccessException e) {
+            throw new EntityManagerException(e.getMessage());
+        }
+    }
+
+    void setValue(Object entity, Object value) {
+        try {
+            field.set(entity, value);
+        } catch (IllegalAccessException e) {
+            throw new EntityManagerException(e.getMessage());
+        }
+    }
+
+    /**
+     * Converts the value of the field to the value stored in the database.
+     * For foreign keys this is the primary key of the referenced entity,
+     * taken from the entity or the Ref (a number is returned as it is).
+     */
+    Object toColumnValue(Object value) {
+        if (value == null || !isForeignKey() || value instanceof Number) {
+            return value;
+        }
+
+        if (value instanceof Ref<?> reference) {
+            return reference.getId();
+        }
+
+        return EntityMetadataRegistry.get(referencedClass).getPrimaryKey().getValue(value);
+    }
+
+    /**
+     * Converts a number read from the database to the type of
+     * an int or long field (for example a primary key).
+     */
+    Object toFieldType(long value) {
+        Class<?> fieldType = field.getType();
+
+        if (fieldType == int.class || fieldType == Integer.class) {
+            return (int) value;
+        }
+
+        return value;
+    }
+
+    static String getConstraints(Column columnAnnotation) {
+        return getConstraints(columnAnnotation.nullable(), columnAnnotation.unique());
+    }
+
+    static String getConstraints(ForeignKey foreignKeyAnnotation) {
+        return getConstraints(foreignKeyAnnotation.nullable(), foreignKeyAnnotation.unique());
+    }
+
+    private static String getConstraints(boolean isNullable, boolean isUnique) {
+        String nullable = isNullable ? "null" : "not null";
+
+        if (isUnique) {
+            return nullable + " unique";
+        }
+
+        return nullable;
+    }
+}
@@ -0,0 +1,376 @@
+package ORM;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of connections to a MySQL database.
+ *
+ * Connections taken with getConnection() are given back to the pool
+ * when they are closed, instead of closing the connection to the database.
+ * The pool keeps between minSize and maxSize open connections, validates
+ * connections that have been idle for longer than the validationInterval
+ * before giving them out, closes the ones that have been idle
+ * for too long, and can warn about connections that are never given back.
+ *
+ * @see PoolSettings
+ * @see Connector
+ * @see EntityManagerFactory
+ */
+public class ConnectionPool implements DataSource, AutoCloseable {
+
+    private static final long HOUSEKEEPING_PERIOD_SECONDS = 30;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    private final String url;
+    private final Properties properties;
+    private final PoolSettings settings;
+
+    private final Semaphore permits;
+    private final BlockingDeque<PooledConnection> idleConnections;
+    private final Set<PooledConnection> connections;
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    public ConnectionPool(String url, Properties properties, PoolSettings settings) throws SQLException {
+        if (settings.getMaxSize() < 1 || settings.getMinSize() < 0 || settings.getMinSize() > settings.getMaxSize()) {
+            throw new IllegalArgumentException("The pool size must be between a non-negative minSize and a positive maxSize.");
+        }
+
+        this.url = url;
+        this.properties = properties;
+        this.settings = settings;
+        this.permits = new Semaphore(settings.getMaxSize(), true);
+        this.idleConnections = new LinkedBlockingDeque<>();
+        this.connections = ConcurrentHashMap.newKeySet();
+
+        for (int i = 0; i < settings.getMinSize(); i++) {
+            idleConnections.addFirst(openConnection());
+        }
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ConnectionPool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.housekeeper.scheduleAtFixedRate(this::doHousekeeping,
+                HOUSEKEEPING_PERIOD_SECONDS, HOUSEKEEPING_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Takes a free connection from the pool, opening a new one if there is no idle
+     * connection and there are less than maxSize connections. If all connections are in use,
+     * waits for acquireTimeout for one of them to be given back.
+     *
+     * @return A connection, which is given back to the pool when it is closed
+     * @throws SQLTimeoutException If no connection was free within the acquireTimeout
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool is closed.");
+        }
+
+        try {
+            if (!permits.tryAcquire(settings.getAcquireTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                String message = String.format("No free connection within %d ms (maximum pool size is %d).",
+                        settings.getAcquireTimeout().toMillis(), settings.getMaxSize());
+                throw new SQLTimeoutException(message);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a free connection.");
+        }
+
+        try {
+            PooledConnection pooledConnection;
+            while ((pooledConnection = idleConnections.pollFirst()) != null) {
+                if (wasUsedRecently(pooledConnection) || isValid(pooledConnection)) {
+                    break;
+                }
+                discard(pooledConnection);
+            }
+
+            if (pooledConnection == null) {
+                pooledConnection = openConnection();
+            }
+
+            return pooledConnection.checkOut();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The pool uses the credentials it was created with.");
+    }
+
+    /**
+     * The number of open connections, both idle and in use.
+     */
+    public int getSize() {
+        return connections.size();
+    }
+
+    /**
+     * The number of open connections that are not in use.
+     */
+    public int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    /**
+     * Closes all idle connections and stops giving out new ones.
+     * Connections that are in use are closed when they are given back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idleConnections.pollFirst()) != null) {
+            discard(pooledConnection);
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> type) throws SQLException {
+        if (type.isInstance(this)) {
+            return type.cast(this);
+        }
+
+        throw new SQLException("The pool is not a wrapper for " + type.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> type) {
+        return type.isInstance(this);
+    }
+
+    private PooledConnection openConnection() throws SQLException {
+        PooledConnection pooledConnection = new PooledConnection(DriverManager.getConnection(url, properties));
+        connections.add(pooledConnection);
+
+        return pooledConnection;
+    }
+
+    /**
+     * Whether the connection was given back within the validationInterval,
+     * in which case it is assumed to still work.
+     */
+    private boolean wasUsedRecently(PooledConnection pooledConnection) {
+        return System.nanoTime() - pooledConnection.lastUsedAt < settings.getValidationInterval().toNanos();
+    }
+
+    private boolean isValid(PooledConnection pooledConnection) {
+        try {
+            if (settings.getValidationQuery() == null) {
+                return pooledConnection.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+            }
+
+            try (Statement statement = pooledConnection.connection.createStatement()) {
+                statement.setQueryTimeout(VALIDATION_TIMEOUT_SECONDS);
+                statement.execute(settings.getValidationQuery());
+                return true;
+            }
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection pooledConnection) {
+        connections.remove(pooledConnection);
+
+        try {
+            pooledConnection.connection.close();
+        } catch (SQLException ignored) {
+            // the connection is no longer used either way
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool, resetting the state
+     * that the user could have changed.
+     */
+    private void giveBack(PooledConnection pooledConnection) {
+        try {
+            if (closed || pooledConnection.connection.isClosed()) {
+                discard(pooledConnection);
+                return;
+            }
+
+            if (!pooledConnection.connection.getAutoCommit()) {
+                pooledConnection.connection.rollback();
+                pooledConnection.connection.setAutoCommit(true);
+            }
+
+            pooledConnection.lastUsedAt = System.nanoTime();
+            idleConnections.addFirst(pooledConnection);
+        } catch (SQLException e) {
+            discard(pooledConnection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the idleTimeout
+     * (keeping at least minSize connections) and reports leaked connections.
+     */
+    private void doHousekeeping() {
+        long now = System.nanoTime();
+        long idleTimeout = settings.getIdleTimeout().toNanos();
+
+        for (PooledConnection pooledConnection : idleConnections) {
+            if (connections.size() <= settings.getMinSize()) {
+                break;
+            }
+
+            if (now - pooledConnection.lastUsedAt > idleTimeout && idleConnections.remove(pooledConnection)) {
+                discard(pooledConnection);
+            }
+        }
+
+        long leakThreshold = settings.getLeakDetectionThreshold().toNanos();
+        if (leakThreshold <= 0) {
+            return;
+        }
+
+        for (PooledConnection pooledConnection : connections) {
+            Throwable checkedOutBy = pooledConnection.checkedOutBy;
+            if (checkedOutBy != null && !pooledConnection.leakReported
+                    && now - pooledConnection.checkedOutAt > leakThreshold) {
+                pooledConnection.leakReported = true;
+
+                System.err.printf("Connection not given back to the pool for more than %d ms, taken by:%n",
+                        settings.getLeakDetectionThreshold().toMillis());
+                checkedOutBy.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A connection to the database that belongs to the pool. Every time it is taken
+     * from the pool, the user receives a new proxy of it, whose close() method gives
+     * the connection back to the pool and makes the proxy unusable.
+     */
+    private final class PooledConnection {
+
+        private final Connection connection;
+        private volatile long lastUsedAt;
+        private volatile long checkedOutAt;
+        private volatile Throwable checkedOutBy;
+        private volatile boolean leakReported;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.lastUsedAt = System.nanoTime();
+        }
+
+        private Connection checkOut() {
+            checkedOutAt = System.nanoTime();
+            leakReported = false;
+            if (!settings.getLeakDetectionThreshold().isZero()) {
+                checkedOutBy = new Throwable("Connection taken from the pool");
+            }
+
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new ConnectionHandler(this));
+        }
+
+        private void checkIn() {
+            checkedOutBy = null;
+            giveBack(this);
+        }
+    }
+
+    private static final class ConnectionHandler implements InvocationHandler {
+
+        private final PooledConnection pooledConnection;
+        private volatile boolean closed;
+
+        private ConnectionHandler(PooledConnection pooledConnection) {
+            this.pooledConnection = pooledConnection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    synchronized (this) {
+                        if (!closed) {
+                            closed = true;
+                            pooledConnection.checkIn();
+                        }
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pooledConnection.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + pooledConnection.connection;
+                default:
+                    break;
+            }
+
+            if (closed) {
+                throw new SQLException("The connection has already been given back to the pool.");
+            }
+
+            try {
+                return method.invoke(pooledConnection.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
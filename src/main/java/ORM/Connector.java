@@ -1,5 +1,6 @@
 package ORM;
 
+import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
@@ -18,6 +19,7 @@ import java.util.Properties;
 public class Connector {
 
     private static Connection connection;
+    private static DataSource dataSource;
 
     /**
      * Used to create a connection with a MySQL database
@@ -34,13 +36,29 @@ public class Connector {
             throw new IllegalArgumentException(message);
         }
 
-        Properties properties = new Properties();
-        properties.setProperty("user", username);
-        properties.setProperty("password", password);
+        connection = DriverManager.getConnection(getConnectionString(databaseName), getProperties(username, password));
+    }
 
-        String connectionString = "jdbc:mysql://localhost:3306/" + databaseName;
+    /**
+     * Used to create a pool of connections with a MySQL database
+     * using the given parameters. The pool can be used by multiple threads
+     * at the same time, for example through an EntityManagerFactory.
+     *
+     * @param username The name of the user
+     * @param password The password of the user
+     * @param databaseName The name of the database
+     * @param settings The size and the other settings of the pool
+     * @throws SQLException If any database access errors occur
+     * @see EntityManagerFactory
+     */
+    public static void createPool(String username, String password, String databaseName, PoolSettings settings)
+            throws SQLException {
+        if (dataSource != null) {
+            String message = String.format("Connection pool already made with database \"%s\".", databaseName);
+            throw new IllegalArgumentException(message);
+        }
 
-        connection = DriverManager.getConnection(connectionString, properties);
+        dataSource = new ConnectionPool(getConnectionString(databaseName), getProperties(username, password), settings);
     }
 
     /**
@@ -52,4 +70,39 @@ public class Connector {
     public static Connection getConnection() {
         return connection;
     }
+
+    /**
+     * Used to return the connection pool created from
+     * the method createPool.
+     *
+     * @return A pool of connections to the given database
+     */
+    public static DataSource getDataSource() {
+        return dataSource;
+    }
+
+    private static String getConnectionString(String databaseName) {
+        return "jdbc:mysql://localhost:3306/" + databaseName;
+    }
+
+    private static Properties getProperties(String username, String password) {
+        Properties properties = new Properties();
+        properties.setProperty("user", username);
+        properties.setProperty("password", password);
+        // Prepare the statements generated by the EntityManager on the server,
+        // so that their execution plans are reused between executions
+        properties.setProperty("useServerPrepStmts", "true");
+        properties.setProperty("cachePrepStmts", "true");
+        // The driver caches only 25 statements of at most 256 characters by default,
+        // which leaves out upserts and the "in (...)" queries of up to 500 keys
+        properties.setProperty("prepStmtCacheSize", "256");
+        properties.setProperty("prepStmtCacheSqlLimit", "8192");
+        // Send the batches of persistAll() and removeAll() as multi-row statements
+        properties.setProperty("rewriteBatchedStatements", "true");
+        // Read the results of EntityManager.stream() with a server-side cursor,
+        // a fetch size at a time, instead of all at once
+        properties.setProperty("useCursorFetch", "true");
+
+        return properties;
+    }
 }
@@ -0,0 +1,102 @@
+package ORM;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Takes a connection from a DataSource (usually a ConnectionPool)
+ * for every statement, and gives it back when the statement is released.
+ *
+ * Used by a shared EntityManager, so that every thread executes its statements
+ * on its own connection. The statements themselves are cached by
+ * the MySQL driver of each connection (cachePrepStmts, with the cache
+ * sizes set in Connector).
+ *
+ * While a thread reads a query result with a cursor (see EntityManager.stream),
+ * the connection of the cursor is pinned to the thread, so the queries made for
+ * the result run on that connection, and the thread never holds two connections.
+ *
+ * @see ConnectionPool
+ */
+final class DataSourceStatementSource extends StatementSource {
+
+    private final DataSource dataSource;
+    private final Map<PreparedStatement, Connection> connections;
+    private final ThreadLocal<Connection> pinnedConnection;
+
+    DataSourceStatementSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+        this.connections = new ConcurrentHashMap<>();
+        this.pinnedConnection = new ThreadLocal<>();
+    }
+
+    @Override
+    void pin(StatementLease lease) {
+        pinnedConnection.set(connections.get(lease.getStatement()));
+    }
+
+    @Override
+    void unpin() {
+        pinnedConnection.remove();
+    }
+
+    @Override
+    PreparedStatement acquire(String sql, boolean returnGeneratedKeys) throws SQLException {
+        // a statement on the pinned connection is not in the connections map,
+        // so giving it back closes only the statement
+        Connection pinned = pinnedConnection.get();
+        if (pinned != null) {
+            return prepare(pinned, sql, returnGeneratedKeys);
+        }
+
+        Connection connection = dataSource.getConnection();
+
+        try {
+            PreparedStatement statement = prepare(connection, sql, returnGeneratedKeys);
+            connections.put(statement, connection);
+
+            return statement;
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private PreparedStatement prepare(Connection connection, String sql, boolean returnGeneratedKeys) throws SQLException {
+        return returnGeneratedKeys
+                ? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                : connection.prepareStatement(sql);
+    }
+
+    @Override
+    void release(String sql, PreparedStatement statement) throws SQLException {
+        discard(statement);
+    }
+
+    @Override
+    PreparedStatement prepare(String sql) throws SQLException {
+        return acquire(sql, false);
+    }
+
+    @Override
+    void discard(PreparedStatement statement) throws SQLException {
+        Connection connection = connections.remove(statement);
+
+        try {
+            statement.close();
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    @Override
+    void close() {
+    }
+}
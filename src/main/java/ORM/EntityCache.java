@@ -0,0 +1,437 @@
+package ORM;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A second-level cache of entities, which can be shared
+ * by multiple EntityManager instances (also from different threads).
+ *
+ * Only entities annotated with Cacheable are stored in it. The cache keeps
+ * the column values of an entity, as they were read from the database,
+ * and every EntityManager creates its own instance from them. An entity is
+ * removed from the cache whenever it is persisted or removed through an EntityManager.
+ *
+ * Every put() is given the time its state was read from the database. A state read
+ * before the last eviction of its entity is not cached, so a read that overlaps
+ * the write of another EntityManager can not put the old state back.
+ *
+ * The cache holds at most maxSize entities, evicting the least recently used (LRU)
+ * or the least frequently used (LFU) one when it is full, and every entity
+ * expires after the given time to live.
+ *
+ * Reads do not lock the cache. The eviction order is kept separately for every
+ * segment of the cache (up to 16, of at least 64 entities each), each with its own
+ * lock and its share of maxSize, so the evicted entity is the least recently (or frequently)
+ * used one of its segment, which approximates the order of the whole cache.
+ *
+ * @see ORM.Annotations.Cacheable
+ */
+public class EntityCache {
+
+    /**
+     * Which entity is evicted when the cache is full.
+     */
+    public enum EvictionPolicy {
+
+        /**
+         * Evicts the entity that was not accessed for the longest time.
+         */
+        LRU,
+
+        /**
+         * Evicts the entity that was accessed the least number of times.
+         */
+        LFU
+    }
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_CAPACITY = 64;
+
+    private final long timeToLiveNanos;
+    private final Map<CacheKey, CacheEntry> entries;
+    private final Segment[] segments;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * @param maxSize The maximum number of entities in the cache
+     * @param evictionPolicy Which entity is evicted when the cache is full
+     * @param timeToLive For how long an entity is kept in the cache
+     */
+    public EntityCache(int maxSize, EvictionPolicy evictionPolicy, Duration timeToLive) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The maximum size of the cache must be a positive number.");
+        }
+
+        this.timeToLiveNanos = timeToLive.toNanos();
+        this.entries = new ConcurrentHashMap<>();
+
+        // the maximum size is divided between the segments, so their capacities add up to it;
+        // a small cache has a single segment, so its eviction order is exact
+        int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_CAPACITY));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            int capacity = maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0);
+            EvictionQueue queue = evictionPolicy == EvictionPolicy.LRU ? new LruQueue() : new LfuQueue();
+            segments[i] = new Segment(capacity, queue);
+        }
+    }
+
+    /**
+     * Returns the cached column values of the entity; Null if it is not cached.
+     */
+    Object[] get(Class<?> entityClass, long primaryKey) {
+        CacheKey key = new CacheKey(entityClass, primaryKey);
+        CacheEntry entry = entries.get(key);
+
+        if (entry == null) {
+            missCount.increment();
+            return null;
+        }
+
+        Segment segment = segmentOf(key);
+
+        if (System.nanoTime() - entry.createdAt > timeToLiveNanos) {
+            segment.lock.lock();
+            try {
+                if (entries.remove(key, entry)) {
+                    segment.queue.removed(key);
+                    segment.size--;
+                    evictionCount.increment();
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+
+            missCount.increment();
+            return null;
+        }
+
+        // the access is not recorded if another thread is using the segment,
+        // so reads never wait, at the cost of a less exact eviction order
+        if (segment.lock.tryLock()) {
+            try {
+                if (entries.get(key) == entry) {
+                    segment.queue.accessed(key);
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+
+        hitCount.increment();
+        return entry.state;
+    }
+
+    /**
+     * Caches the column values of the entity, unless the entity was evicted
+     * after they were read, or they are older than the time to live.
+     *
+     * @param readStartedAt The System.nanoTime() from before the state was read from the database
+     */
+    void put(Class<?> entityClass, long primaryKey, Object[] state, long readStartedAt) {
+        CacheKey key = new CacheKey(entityClass, primaryKey);
+        CacheEntry entry = new CacheEntry(state, readStartedAt);
+        Segment segment = segmentOf(key);
+
+        segment.lock.lock();
+        try {
+            if (System.nanoTime() - readStartedAt > timeToLiveNanos || segment.isEvictedSince(key, readStartedAt)) {
+                return;
+            }
+
+            if (entries.put(key, entry) != null) {
+                segment.queue.accessed(key);
+                return;
+            }
+
+            if (segment.size >= segment.capacity) {
+                entries.remove(segment.queue.evict());
+                segment.size--;
+                evictionCount.increment();
+            }
+
+            segment.queue.added(key);
+            segment.size++;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    void evict(Class<?> entityClass, long primaryKey) {
+        CacheKey key = new CacheKey(entityClass, primaryKey);
+        Segment segment = segmentOf(key);
+
+        segment.lock.lock();
+        try {
+            removeEntry(segment, key);
+            segment.evicted(key, System.nanoTime(), timeToLiveNanos);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all cached entities of the given class.
+     */
+    void evictAll(Class<?> entityClass) {
+        evictAllSegments();
+
+        for (CacheKey key : entries.keySet()) {
+            if (key.entityClass == entityClass) {
+                removeEntry(key);
+            }
+        }
+    }
+
+    /**
+     * Removes all entities from the cache.
+     */
+    public void clear() {
+        evictAllSegments();
+
+        for (CacheKey key : entries.keySet()) {
+            removeEntry(key);
+        }
+    }
+
+    /**
+     * Rejects the states read before now in all segments, since which entities
+     * of a class are in the database (and not only in the cache) is unknown.
+     */
+    private void evictAllSegments() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.evictedAll(System.nanoTime());
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * The number of times a cached entity was found.
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * The number of times an entity was not found in the cache.
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * The number of entities removed because the cache was full or they expired.
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    private void removeEntry(CacheKey key) {
+        Segment segment = segmentOf(key);
+
+        segment.lock.lock();
+        try {
+            removeEntry(segment, key);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    private void removeEntry(Segment segment, CacheKey key) {
+        if (entries.remove(key) != null) {
+            segment.queue.removed(key);
+            segment.size--;
+        }
+    }
+
+    private Segment segmentOf(CacheKey key) {
+        int hash = key.hashCode();
+        return segments[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % segments.length];
+    }
+
+    private record CacheKey(Class<?> entityClass, long primaryKey) {
+    }
+
+    private record CacheEntry(Object[] state, long createdAt) {
+    }
+
+    /**
+     * A part of the cache with its own lock and eviction order. Every key belongs
+     * to one segment, and the entries of a segment are only added or removed
+     * while its lock is held, so its eviction queue always has the same keys.
+     *
+     * The segment also keeps when its keys were last evicted, in the order of
+     * their evictions. The oldest times are forgotten when there are more than
+     * the capacity of the segment, and every state read before a forgotten time
+     * is rejected instead. Times older than the time to live are dropped, since
+     * a state read before them is rejected as expired anyway.
+     */
+    private static final class Segment {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int capacity;
+        private final EvictionQueue queue;
+        private final LinkedHashMap<CacheKey, Long> evictedAt = new LinkedHashMap<>();
+        private long allEvictedAt = System.nanoTime();
+        private int size;
+
+        Segment(int capacity, EvictionQueue queue) {
+            this.capacity = capacity;
+            this.queue = queue;
+        }
+
+        /**
+         * Whether the key was evicted at or after the given time.
+         */
+        boolean isEvictedSince(CacheKey key, long time) {
+            if (allEvictedAt - time >= 0) {
+                return true;
+            }
+
+            Long keyEvictedAt = evictedAt.get(key);
+            return keyEvictedAt != null && keyEvictedAt - time >= 0;
+        }
+
+        void evicted(CacheKey key, long now, long timeToLiveNanos) {
+            evictedAt.remove(key);
+            evictedAt.put(key, now);
+
+            Iterator<Long> times = evictedAt.values().iterator();
+            while (times.hasNext()) {
+                long time = times.next();
+                if (now - time <= timeToLiveNanos && evictedAt.size() <= capacity) {
+                    break;
+                }
+
+                if (now - time <= timeToLiveNanos) {
+                    allEvictedAt = time;
+                }
+                times.remove();
+            }
+        }
+
+        void evictedAll(long now) {
+            evictedAt.clear();
+            allEvictedAt = now;
+        }
+    }
+
+    /**
+     * Keeps the order in which the cached entities should be evicted.
+     */
+    private interface EvictionQueue {
+
+        void added(CacheKey key);
+
+        void accessed(CacheKey key);
+
+        void removed(CacheKey key);
+
+        CacheKey evict();
+    }
+
+    private static final class LruQueue implements EvictionQueue {
+
+        private final LinkedHashSet<CacheKey> keys = new LinkedHashSet<>();
+
+        @Override
+        public void added(CacheKey key) {
+            keys.add(key);
+        }
+
+        @Override
+        public void accessed(CacheKey key) {
+            keys.remove(key);
+            keys.add(key);
+        }
+
+        @Override
+        public void removed(CacheKey key) {
+            keys.remove(key);
+        }
+
+        @Override
+        public CacheKey evict() {
+            Iterator<CacheKey> iterator = keys.iterator();
+            CacheKey key = iterator.next();
+            iterator.remove();
+            return key;
+        }
+    }
+
+    /**
+     * Groups the keys by their access count, so that the least frequently
+     * used key (the oldest one among equally used keys) is found in constant time.
+     */
+    private static final class LfuQueue implements EvictionQueue {
+
+        private final Map<CacheKey, Integer> frequencies = new HashMap<>();
+        private final Map<Integer, LinkedHashSet<CacheKey>> keysByFrequency = new HashMap<>();
+        private int minFrequency;
+
+        @Override
+        public void added(CacheKey key) {
+            frequencies.put(key, 1);
+            keysByFrequency.computeIfAbsent(1, frequency -> new LinkedHashSet<>()).add(key);
+            minFrequency = 1;
+        }
+
+        @Override
+        public void accessed(CacheKey key) {
+            int frequency = frequencies.get(key);
+            frequencies.put(key, frequency + 1);
+
+            LinkedHashSet<CacheKey> keys = keysByFrequency.get(frequency);
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByFrequency.remove(frequency);
+                if (minFrequency == frequency) {
+                    minFrequency++;
+                }
+            }
+
+            keysByFrequency.computeIfAbsent(frequency + 1, newFrequency -> new LinkedHashSet<>()).add(key);
+        }
+
+        @Override
+        public void removed(CacheKey key) {
+            Integer frequency = frequencies.remove(key);
+
+            LinkedHashSet<CacheKey> keys = keysByFrequency.get(frequency);
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByFrequency.remove(frequency);
+                if (minFrequency == frequency && !frequencies.isEmpty()) {
+                    minFrequency = keysByFrequency.keySet().stream().min(Integer::compare).orElse(1);
+                }
+            }
+        }
+
+        @Override
+        public CacheKey evict() {
+            LinkedHashSet<CacheKey> keys = keysByFrequency.get(minFrequency);
+            CacheKey key = keys.iterator().next();
+            removed(key);
+            return key;
+        }
+    }
+}
@@ -7,7 +7,10 @@ import ORM.Annotations.GeneratedValue;
 import ORM.Annotations.Column;
 import ORM.Annotations.ForeignKey;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * The EntityManager interface is used to interact with a MySQL database.
@@ -24,6 +27,20 @@ import java.util.List;
  * Every class that is annotated with these annotations should
  * have an empty constructor for the EntityManager to work properly.
  *
+ * Every entity retrieved or saved by an EntityManager is kept in its persistence
+ * context, so finding the same entity again returns the same instance without
+ * querying the database. Use detach() or clear() to release entities that
+ * are no longer needed, or that were changed with a hand-written query.
+ *
+ * An EntityManager bound to a connection should be used by one thread at a time.
+ * A shared EntityManager (see EntityManagerFactory.createSharedEntityManager)
+ * can be used by many threads at the same time; it takes a connection from
+ * the pool for every statement and has no persistence context.
+ *
+ * By default every write is committed as soon as it is executed. Between begin()
+ * and commit() the writes are queued instead, and are sent to the database
+ * in batches before every query and at commit, so they are committed together.
+ *
  * @see Entity
  * @see Table
  * @see Id
@@ -31,7 +48,7 @@ import java.util.List;
  * @see Column
  * @see ForeignKey
  */
-public interface EntityManager {
+public interface EntityManager extends AutoCloseable {
 
     /**
      * Used for creating queries that do not return any type of results.
@@ -81,7 +98,8 @@ public interface EntityManager {
      *
      * When the id of the class is annotated with the Id and the GeneratedValue annotations
      * - If the current object doesn't have a value for its id, then
-     *   the object is inserted into the table with an auto generated id;
+     *   the object is inserted into the table with an auto generated id,
+     *   which is then set to the id field of the object;
      *   If its id has a value, then it checks if an entity with such id exists
      *   in the database table, and if it does, it updates it with the current object's fields.
      *
@@ -89,17 +107,28 @@ public interface EntityManager {
      * - Checks if an entity with the current object's id exists in the database
      *   table, and if it does, it updates it with the current object's
      *   fields, and if it does not, it inserts it.
+     *   When the table has no unique columns other than the id, both are done
+     *   with a single "insert ... on duplicate key update" query.
+     *
+     * An update of an entity that was retrieved or saved by this EntityManager
+     * sets only the columns that were changed since then, and is skipped
+     * if nothing was changed.
      *
+     * When the class has a field annotated with Version, the update only succeeds
+     * if the version in the database matches the entity's, and increments it;
+     * otherwise an OptimisticLockException is thrown.
      *
      * @param entity Current persist entity
-     * @return True if the insert/update query was executed properly;
+     * @return True if the insert/update query was executed properly,
+     * or if there was nothing to update;
      * False if the query was not executed properly or if
      * any errors occurred during execution
      */
     boolean persist(Object entity);
 
     /**
-     * Used for deleting an entity from the database.
+     * Used for deleting an entity from the database,
+     * by its primary key, with a single delete statement.
      * If such entity does not exist in the database
      * the method throws an exception.
      *
@@ -107,6 +136,37 @@ public interface EntityManager {
      */
     void remove(Object entity);
 
+    /**
+     * Used for deleting an entity from the database by its primary key,
+     * without retrieving it first.
+     * If such entity does not exist in the database
+     * the method throws an exception.
+     *
+     * @param entityClass The class from whose corresponding table the entity will be deleted
+     * @param primaryKey The id of the entity that is deleted
+     */
+    <T> void removeById(Class<T> entityClass, long primaryKey);
+
+    /**
+     * Used to insert or update many entities at once. Works the same way
+     * as persist() does for every entity, but the entities are grouped
+     * by their class and sent to the database in batches of at most
+     * batchSize statements, instead of one statement at a time.
+     *
+     * @param entities Entities to be inserted or updated
+     */
+    void persistAll(Collection<?> entities);
+
+    /**
+     * Used to delete many entities at once. The entities are grouped
+     * by their class and deleted in batches of at most batchSize statements.
+     * Unlike remove(), entities that do not exist in the database are ignored,
+     * except for entities with a Version, which cause an OptimisticLockException.
+     *
+     * @param entities Entities to be deleted
+     */
+    void removeAll(Collection<?> entities);
+
     /**
      * Used to retrieve an entity from the current database table.
      * Finding it by the primary key, searching in the
@@ -129,12 +189,203 @@ public interface EntityManager {
      */
     <T> List<T> findAll(Class<T> entityClass);
 
+    /**
+     * Used to build a query on the database table corresponding to the entityClass class,
+     * by the names of the fields of the class instead of hand-written SQL.
+     * For example:
+     * em.from(Course.class).where("price", Operator.GT, 100).orderBy("name").limit(10).getResultList()
+     *
+     * @param entityClass The class from whose corresponding table the entities will be retrieved
+     * @return A new query that selects all entities of the table
+     * @see Query
+     */
+    <T> Query<T> from(Class<T> entityClass);
+
+    /**
+     * Used to retrieve the entities of the database table one page at a time,
+     * ordered by their primary key. Unlike an offset, the page is found
+     * with the primary key index, so every page is retrieved equally fast.
+     *
+     * @param entityClass The class from whose corresponding table the entities will be retrieved
+     * @param afterPrimaryKey The page starts after this primary key
+     *                        (for the first page, a value lower than all keys, for example 0)
+     * @param limit The maximum number of entities in the page
+     * @return The page; use its nextPage() method to continue
+     */
+    <T> Page<T> findPage(Class<T> entityClass, long afterPrimaryKey, int limit);
+
+    /**
+     * Used for SELECT queries with too many results to keep in memory at once.
+     * The rows are read from the database in chunks of fetchBatchSize rows
+     * while the stream is consumed, and the returned entities are not kept
+     * in the persistence context.
+     *
+     * The stream keeps its statement open until it is closed, so it should
+     * be used in a try-with-resources block.
+     *
+     * The rows are read in chunks only on connections opened with the
+     * useCursorFetch property, as the connections of Connector are. On other
+     * connections the MySQL driver reads the whole result at once.
+     *
+     * @param SQL The SQL query
+     * @param resultClass The class type of the query result
+     * @return A stream of the instances of the resultClass
+     */
+    <T> Stream<T> stream(String SQL, Class<T> resultClass);
+
+    /**
+     * Same as stream(), for all entities of the database table
+     * corresponding to the entityClass class.
+     *
+     * @param entityClass The class from whose corresponding table the entities will be retrieved
+     * @return A stream of all entities of the table
+     */
+    <T> Stream<T> streamAll(Class<T> entityClass);
+
+    /**
+     * Removes the given entity from the persistence context of the EntityManager.
+     * Finding it again will retrieve a new instance from the database.
+     *
+     * @param entity The entity to be detached
+     */
+    void detach(Object entity);
+
+    /**
+     * Removes all entities from the persistence context of the EntityManager.
+     */
+    void clear();
+
+    /**
+     * Used to check, once (for example on startup), that the database table
+     * corresponding to the given class has a column for every mapped field.
+     *
+     * The EntityManager builds its queries from the annotations of the class only,
+     * so this method can be used to detect a table that is out of date with its class.
+     * If any of the columns is missing, the method throws an exception.
+     *
+     * @param table The class whose corresponding table should be validated
+     */
+    <T> void validateSchema(Class<T> table);
+
+    /**
+     * Begins a transaction on the connection of the EntityManager.
+     *
+     * Until the transaction is committed or rolled back, persist(), persistAll(),
+     * remove(), removeById() and removeAll() only queue their writes, and return
+     * without querying the database. The queued writes are flushed before every
+     * query of the EntityManager and at commit: the inserts and updates first,
+     * with the tables referenced by foreign keys written before the tables that
+     * reference them, then the deletes, in the opposite order. The writes
+     * to each table are sent together, in batches of at most batchSize statements.
+     *
+     * Errors of the queued writes (for example an OptimisticLockException)
+     * are therefore thrown by the method that flushes them, after the whole
+     * transaction is rolled back, so a failed flush is never partly committed.
+     *
+     * A shared EntityManager can not begin a transaction; use inTransaction() instead.
+     *
+     * @throws ORM.Exceptions.EntityManagerException If a transaction is already active
+     */
+    void begin();
+
+    /**
+     * Sends the queued writes of the active transaction to the database, without committing them.
+     * If any of the writes fails, the transaction is rolled back.
+     * Does nothing if there is no active transaction.
+     */
+    void flush();
+
+    /**
+     * Flushes the queued writes of the active transaction and commits it.
+     * If any of the writes fails, the transaction is rolled back.
+     */
+    void commit();
+
+    /**
+     * Rolls back the active transaction, discarding its queued writes, and clears the
+     * persistence context, since its entities may hold values that were rolled back.
+     */
+    void rollback();
+
+    /**
+     * Whether a transaction was begun and has not been committed or rolled back yet.
+     */
+    boolean isTransactionActive();
+
+    /**
+     * Runs the given work in a transaction, which is committed when the work
+     * returns and rolled back if it throws an exception.
+     *
+     * On a shared EntityManager the work is given an EntityManager bound to
+     * a connection of its own, which is closed after the transaction ends.
+     *
+     * @param work The operations to run in the transaction
+     */
+    void inTransaction(Consumer<EntityManager> work);
+
+    /**
+     * Loads the names of the tables of the database again.
+     *
+     * The EntityManager checks that the table of an entity exists without
+     * querying the database, using the table names loaded the first time they are
+     * needed and kept current by createTable(), dropTable() and createQuery().
+     * Call this method after tables are created or dropped by another application.
+     */
+    void refreshSchema();
+
     /**
      * If the SQL of the performed operations by the user
      * should be shown in the console or not.
      *
      * @param value if true, the SQL will be show, and if false - it will be hidden.
+     * The value can be changed at any time, even while other threads use the EntityManager.
      */
     void showSql(boolean value);
 
+    /**
+     * Sets the maximum number of primary keys in a single
+     * "where id in (...)" query, used when retrieving the entities
+     * referenced by the foreign keys of a query result.
+     * 500 by default.
+     *
+     * All distinct foreign key values of a result are retrieved together,
+     * with as many queries as needed to not exceed this size.
+     *
+     * @param size The maximum number of primary keys per query
+     */
+    void fetchBatchSize(int size);
+
+    /**
+     * Sets the maximum number of statements sent to the database
+     * in a single batch by persistAll(), removeAll() and the flush of a transaction.
+     * 1000 by default.
+     *
+     * @param size The maximum number of statements per batch
+     */
+    void batchSize(int size);
+
+    /**
+     * Returns the number of statements that the EntityManager is currently using.
+     * Every statement is closed, or given back to the statement cache, as soon as
+     * its results have been read, so this is 0 whenever no operation is running.
+     * A larger value means that statements are leaking.
+     *
+     * @return The number of statements in use
+     */
+    int getOpenStatementCount();
+
+    /**
+     * Closes the cached statements of the EntityManager, and clears its
+     * persistence context. An active transaction is rolled back.
+     *
+     * The connection is closed only if the EntityManager took it from a DataSource
+     * itself (for example one created by an EntityManagerFactory), which gives it
+     * back to the connection pool. A connection passed to the constructor
+     * belongs to the caller, who closes it.
+     *
+     * The EntityManager can not be used after it is closed.
+     */
+    @Override
+    void close();
+
 }
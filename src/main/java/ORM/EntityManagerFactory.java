@@ -0,0 +1,68 @@
+package ORM;
+
+import ORM.Exceptions.EntityManagerException;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+
+/**
+ * Creates EntityManager instances, each bound to its own connection
+ * taken from a DataSource (for example the pool created with Connector.createPool).
+ *
+ * The factory itself can be shared by multiple threads. Every thread (or request)
+ * creates its own EntityManager and closes it when it is done, which gives
+ * its connection back to the pool. Alternatively, all threads can use
+ * a single shared EntityManager.
+ *
+ * All EntityManager instances of a factory share the names of the tables of the database,
+ * so these are loaded only once.
+ *
+ * @see Connector
+ * @see ConnectionPool
+ */
+public class EntityManagerFactory {
+
+    private final DataSource dataSource;
+    private final EntityCache entityCache;
+    private final SchemaRegistry schemaRegistry;
+
+    public EntityManagerFactory(DataSource dataSource) {
+        this(dataSource, null);
+    }
+
+    /**
+     * @param dataSource The source of the connections of the created EntityManager instances
+     * @param entityCache The second-level cache shared by the created EntityManager instances
+     */
+    public EntityManagerFactory(DataSource dataSource, EntityCache entityCache) {
+        this.dataSource = dataSource;
+        this.entityCache = entityCache;
+        this.schemaRegistry = new SchemaRegistry();
+    }
+
+    /**
+     * Used to create an EntityManager bound to a connection from the DataSource.
+     * The EntityManager should be closed after use, to give the connection back.
+     *
+     * @return A new EntityManager
+     */
+    public EntityManager createEntityManager() {
+        try {
+            return new EntityManagerImpl(dataSource.getConnection(), true, entityCache, schemaRegistry);
+        } catch (SQLException e) {
+            throw new EntityManagerException(e.getMessage());
+        }
+    }
+
+    /**
+     * Used to create a shared EntityManager, which takes a connection from the DataSource
+     * for every statement and gives it back right after. A shared EntityManager
+     * can be used by many threads at the same time, but it has no persistence context.
+     *
+     * @return A new shared EntityManager
+     * @see EntityManagerImpl
+     */
+    public EntityManager createSharedEntityManager() {
+        return new EntityManagerImpl(dataSource, entityCache, schemaRegistry);
+    }
+}
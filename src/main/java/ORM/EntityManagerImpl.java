@@ -1,37 +1,142 @@
 package ORM;
 
-import ORM.Annotations.*;
-import ORM.Exceptions.AnnotationException;
+import ORM.Annotations.Entity;
 import ORM.Exceptions.EntityManagerException;
+import ORM.Exceptions.OptimisticLockException;
 
+import javax.sql.DataSource;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.stream.Collectors;
-
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An EntityManager is either bound to a single connection, or shared.
+ *
+ * A bound EntityManager executes every statement on its own connection
+ * and keeps the entities it retrieves or saves in its persistence context.
+ *
+ * A shared EntityManager takes a connection from a DataSource for every statement,
+ * so one instance can be used by many threads at the same time. It has no
+ * persistence context: every call works with its own entity instances,
+ * and detach() and clear() do nothing.
+ *
+ * A bound EntityManager can run a transaction, during which its writes are queued
+ * in a UnitOfWork and flushed before every query and at commit. A shared EntityManager
+ * runs a transaction with inTransaction() only, on an EntityManager bound to
+ * a connection of its own.
+ *
+ * A connection passed to a public constructor belongs to the caller, and is not
+ * closed by close(). Only a connection the EntityManager took from a DataSource
+ * itself (in an EntityManagerFactory or inTransaction()) is closed with it.
+ *
+ * @see EntityManagerFactory
+ */
 public class EntityManagerImpl implements EntityManager {
 
+    private static final int DEFAULT_FETCH_BATCH_SIZE = 500;
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
     private final Connection connection;
-    private boolean showSql;
+    private final boolean ownsConnection;
+    private final DataSource dataSource;
+    private final StatementSource statementSource;
+    private final PersistenceContext persistenceContext;
+    private final EntityCache entityCache;
+    private final SchemaRegistry schemaRegistry;
+    private volatile boolean showSql;
+    private volatile int fetchBatchSize;
+    private volatile int batchSize;
+    private volatile UnitOfWork unitOfWork;
 
     public EntityManagerImpl(Connection connection) {
+        this(connection, null);
+    }
+
+    /**
+     * Creates an EntityManager that keeps the entities annotated with
+     * Cacheable in the given second-level cache, which can be
+     * shared with other EntityManager instances.
+     *
+     * @param connection The connection to the database
+     * @param entityCache The shared second-level cache
+     */
+    public EntityManagerImpl(Connection connection, EntityCache entityCache) {
+        this(connection, false, entityCache, new SchemaRegistry());
+    }
+
+    /**
+     * @param ownsConnection Whether the connection is closed when the EntityManager is closed
+     */
+    EntityManagerImpl(Connection connection, boolean ownsConnection, EntityCache entityCache, SchemaRegistry schemaRegistry) {
+        this(connection, ownsConnection, null, new StatementCache(connection), new PersistenceContext(),
+                entityCache, schemaRegistry);
+    }
+
+    /**
+     * Creates a shared EntityManager, which takes a connection from the DataSource
+     * for every statement and can be used by multiple threads at the same time.
+     *
+     * @param dataSource The source of the connections (usually a ConnectionPool)
+     * @param entityCache The shared second-level cache, or null
+     */
+    public EntityManagerImpl(DataSource dataSource, EntityCache entityCache) {
+        this(dataSource, entityCache, new SchemaRegistry());
+    }
+
+    EntityManagerImpl(DataSource dataSource, EntityCache entityCache, SchemaRegistry schemaRegistry) {
+        this(null, false, dataSource, new DataSourceStatementSource(dataSource), null, entityCache, schemaRegistry);
+    }
+
+    private EntityManagerImpl(Connection connection, boolean ownsConnection, DataSource dataSource,
+                              StatementSource statementSource, PersistenceContext persistenceContext,
+                              EntityCache entityCache, SchemaRegistry schemaRegistry) {
         this.connection = connection;
+        this.ownsConnection = ownsConnection;
+        this.dataSource = dataSource;
+        this.statementSource = statementSource;
+        this.persistenceContext = persistenceContext;
+        this.entityCache = entityCache;
+        this.schemaRegistry = schemaRegistry;
         this.showSql = false;
+        this.fetchBatchSize = DEFAULT_FETCH_BATCH_SIZE;
+        this.batchSize = DEFAULT_BATCH_SIZE;
     }
 
     @Override
     public boolean createQuery(String SQL) {
+        flush();
+
         try {
-            PreparedStatement SQLQuery = connection.prepareStatement(SQL);
-            return SQLQuery.executeUpdate() == 1;
+            try (StatementLease SQLQuery = statementSource.leaseOnce(SQL)) {
+                return SQLQuery.getStatement().executeUpdate() == 1;
+            } finally {
+                if (isSchemaChange(SQL)) {
+                    schemaRegistry.invalidate();
+                }
+            }
         } catch (SQLException e) {
             throw new EntityManagerException(e.getMessage());
         }
@@ -39,34 +144,18 @@ public class EntityManagerImpl implements EntityManager {
 
     @Override
     public <T> List<T> createQuery(String SQL, Class<T> resultClass) {
-        try {
-            PreparedStatement SQLQuery = connection.prepareStatement(SQL);
-            ResultSet resultSet = SQLQuery.executeQuery();
+        EntityMetadata<T> metadata = EntityMetadataRegistry.get(resultClass);
+        flush();
 
-            Constructor<T> constructor = resultClass.getDeclaredConstructor();
-            constructor.setAccessible(true);
-
-            List<T> objects = new ArrayList<>();
-            while (resultSet.next()) {
-                T object = constructor.newInstance();
-
-                for (Field field : resultClass.getDeclaredFields()) {
-                    field.setAccessible(true);
-
-                    if (!field.isAnnotationPresent(Id.class) &&
-                            !field.isAnnotationPresent(Column.class) &&
-                            !field.isAnnotationPresent(ForeignKey.class)) {
-                        continue;
-                    }
-
-                    Object value = getFieldValue(resultSet, field);
-                    setValueToField(object, field, value);
-                }
+        try {
+            List<Object[]> states;
 
-                objects.add(object);
+            try (StatementLease SQLQuery = statementSource.leaseOnce(SQL);
+                 ResultSet resultSet = SQLQuery.getStatement().executeQuery()) {
+                states = readRows(resultSet, metadata);
             }
 
-            return objects;
+            return materialize(metadata, states, context());
         } catch (Exception e) {
             throw new EntityManagerException(e.getMessage());
         }
@@ -74,21 +163,21 @@ public class EntityManagerImpl implements EntityManager {
 
     @Override
     public <T> void createTable(Class<T> table) {
-        checkIfClassIsValidEntity(table);
+        EntityMetadata<T> metadata = EntityMetadataRegistry.get(table);
 
-        String tableName = getTableName(table);
-        String columnsInitialization = getColumnsInitialization(table);
+        String tableName = metadata.getTableName();
+        String columnsInitialization = getColumnsInitialization(metadata);
 
         String query = String.format("create table `%s` (%n%s%n)", tableName, columnsInitialization);
 
         try {
-            PreparedStatement createTableQuery = connection.prepareStatement(query);
-            createTableQuery.execute();
-
-            if (this.showSql) {
-                System.out.println("SQL Query:");
-                System.out.printf(query + "%n%n");
+            try (StatementLease createTableQuery = statementSource.leaseOnce(query)) {
+                createTableQuery.getStatement().execute();
             }
+
+            schemaRegistry.add(tableName);
+
+            printQuery(query, List.of());
         } catch (SQLException e) {
             throw new EntityManagerException(e.getMessage());
         }
@@ -96,18 +185,22 @@ public class EntityManagerImpl implements EntityManager {
 
     @Override
     public <T> void dropTable(Class<T> table) {
-        String tableName = getTableName(table);
+        String tableName = EntityMetadataRegistry.get(table).getTableName();
 
         String query = String.format("drop table `%s`", tableName);
 
         try {
-            PreparedStatement dropTableQuery = connection.prepareStatement(query);
-            dropTableQuery.execute();
+            try (StatementLease dropTableQuery = statementSource.leaseOnce(query)) {
+                dropTableQuery.getStatement().execute();
+            }
+
+            schemaRegistry.remove(tableName);
 
-            if (this.showSql) {
-                System.out.println("SQL Query:");
-                System.out.printf(query + "%n%n");
+            if (entityCache != null) {
+                entityCache.evictAll(table);
             }
+
+            printQuery(query, List.of());
         } catch (SQLException e) {
             throw new EntityManagerException(e.getMessage());
         }
@@ -115,581 +208,1737 @@ public class EntityManagerImpl implements EntityManager {
 
     @Override
     public boolean persist(Object entity) {
-        Class<?> entityClass = entity.getClass();
+        EntityMetadata<?> metadata = EntityMetadataRegistry.get(entity.getClass());
+
+        UnitOfWork unitOfWork = this.unitOfWork;
+        if (unitOfWork != null) {
+            unitOfWork.persist(entity);
+            return true;
+        }
+
+        checkIfClassHasExistingDbTable(metadata);
+
+        ColumnMetadata primaryKey = metadata.getPrimaryKey();
+        long primaryKeyNumber = primaryKey.getLong(entity);
+        PersistenceContext context = context();
+
+        String query = null;
+        List<Object> parameters = null;
+        boolean returnGeneratedKey = false;
+        boolean update = false;
+        Object[] snapshot = null;
+
+        if (primaryKey.isGenerated() && primaryKeyNumber == 0) {
+            checkIfReferencedTablesExist(metadata);
+            query = metadata.getInsertSql();
+            parameters = getInsertValues(entity, metadata);
+            returnGeneratedKey = true;
+        } else if (primaryKey.isGenerated() || context.contains(metadata.getEntityClass(), primaryKeyNumber)) {
+            update = true;
+            snapshot = context.getSnapshot(metadata.getEntityClass(), primaryKeyNumber, entity);
+        } else if (metadata.getUpsertSql() != null) {
+            checkIfReferencedTablesExist(metadata);
+            query = metadata.getUpsertSql();
+            parameters = getInsertValues(entity, metadata);
+        } else if ((snapshot = findState(metadata, primaryKeyNumber)) == null) {
+            checkIfReferencedTablesExist(metadata);
+            query = metadata.getInsertSql();
+            parameters = getInsertValues(entity, metadata);
+        } else {
+            update = true;
+        }
 
-        checkIfClassIsValidEntity(entityClass);
-        checkIfClassHasExistingDbTable(entityClass);
+        if (update) {
+            List<ColumnMetadata> changedColumns = getChangedColumns(entity, metadata, snapshot);
+            if (changedColumns.isEmpty()) {
+                return true;
+            }
 
-        Field primaryKey = getPrimaryKeyField(entityClass);
-        primaryKey.setAccessible(true);
-        Object primaryKeyValue;
+            query = metadata.getUpdateSql(changedColumns);
+            parameters = getUpdateValues(entity, metadata, changedColumns);
+        }
 
         try {
-            primaryKeyValue = primaryKey.get(entity);
-        } catch (IllegalAccessException e) {
+            int rowsAffected;
+            if (returnGeneratedKey) {
+                rowsAffected = executeInsert(query, parameters, entity, metadata);
+                primaryKeyNumber = primaryKey.getLong(entity);
+            } else {
+                rowsAffected = executeUpdate(query, parameters);
+            }
+
+            if (update && metadata.getVersion() != null) {
+                checkVersionedWrite(metadata, entity, rowsAffected);
+                incrementVersion(metadata, entity);
+            }
+
+            boolean upsert = query.equals(metadata.getUpsertSql());
+
+            if (primaryKeyNumber != 0) {
+                // an update of no rows means that the row was deleted by someone else,
+                // so the entity is not managed, and find() does not return it
+                if (rowsAffected > 0 || upsert) {
+                    context.put(metadata.getEntityClass(), primaryKeyNumber, entity, getSnapshot(entity, metadata));
+                } else {
+                    context.remove(metadata.getEntityClass(), primaryKeyNumber, entity);
+                }
+                evictFromCache(metadata, primaryKeyNumber);
+            }
+
+            // an upsert reports 2 affected rows when it updates an existing row
+            return upsert ? rowsAffected > 0 : rowsAffected == 1;
+        } catch (SQLException e) {
             throw new EntityManagerException(e.getMessage());
         }
+    }
+
+    @Override
+    public void remove(Object entity) {
+        EntityMetadata<?> metadata = EntityMetadataRegistry.get(entity.getClass());
+        long primaryKey = metadata.getPrimaryKey().getLong(entity);
 
-        String query = "";
+        UnitOfWork unitOfWork = this.unitOfWork;
+        if (unitOfWork != null) {
+            unitOfWork.remove(new UnitOfWork.Removal(metadata.getEntityClass(), primaryKey, entity, true));
+            return;
+        }
 
-        String primaryKeyString = String.valueOf(primaryKeyValue);
-        if (primaryKey.isAnnotationPresent(GeneratedValue.class)) {
-            if (Long.parseLong(primaryKeyString) == 0) {
-                query = insert(entity, entityClass, primaryKey);
-            } else {
-                query = update(entity, entityClass, primaryKey, primaryKeyValue);
+        delete(metadata, primaryKey, entity);
+    }
+
+    @Override
+    public <T> void removeById(Class<T> entityClass, long primaryKey) {
+        UnitOfWork unitOfWork = this.unitOfWork;
+        if (unitOfWork != null) {
+            unitOfWork.remove(new UnitOfWork.Removal(entityClass, primaryKey, null, true));
+            return;
+        }
+
+        delete(EntityMetadataRegistry.get(entityClass), primaryKey, null);
+    }
+
+    /**
+     * Deletes the entity with the given primary key with a single statement,
+     * and uses the number of deleted rows to detect that it does not exist.
+     * If the entity is given and has a version, it is deleted only if its version
+     * is still the one in the database.
+     */
+    private void delete(EntityMetadata<?> metadata, long primaryKey, Object entity) {
+        checkIfClassHasExistingDbTable(metadata);
+
+        boolean versioned = entity != null && metadata.getVersion() != null;
+
+        try {
+            int rowsAffected = versioned
+                    ? executeUpdate(metadata.getDeleteVersionedSql(), getDeleteValues(entity, metadata))
+                    : executeUpdate(metadata.getDeleteSql(), List.of(primaryKey));
+
+            // a versioned entity that was changed by someone else stays managed,
+            // but its cached state is out of date either way
+            if (!versioned || rowsAffected != 0) {
+                context().remove(metadata.getEntityClass(), primaryKey);
             }
-        } else {
-            boolean originalValue = showSql;
-            showSql = false;
-            if (find(entityClass, Long.parseLong(primaryKeyString)) == null) {
-                query = insert(entity, entityClass, primaryKey);
+            evictFromCache(metadata, primaryKey);
+
+            if (versioned) {
+                checkVersionedWrite(metadata, entity, rowsAffected);
             } else {
-                query = update(entity, entityClass, primaryKey, primaryKeyValue);
+                checkIfDeleted(metadata, rowsAffected);
             }
-            showSql = originalValue;
+        } catch (SQLException e) {
+            throw new EntityManagerException(e.getMessage());
         }
+    }
 
-        try {
-            PreparedStatement persistQuery = connection.prepareStatement(query);
-            int rowsAffected = persistQuery.executeUpdate();
+    @Override
+    public void persistAll(Collection<?> entities) {
+        UnitOfWork unitOfWork = this.unitOfWork;
+        if (unitOfWork != null) {
+            entities.forEach(unitOfWork::persist);
+            return;
+        }
+
+        writeAll(entities);
+    }
+
+    /**
+     * Inserts or updates the entities with one batch per table and kind of statement.
+     * The tables are written in the order of their foreign keys, so that
+     * the keys generated for the referenced entities are known before
+     * the entities that reference them are written.
+     */
+    private void writeAll(Collection<?> entities) {
+        PersistenceContext context = context();
+        Map<Class<?>, List<Object>> groups = groupByClass(entities);
+
+        for (Class<?> entityClass : sortByDependencies(groups.keySet())) {
+            List<Object> group = groups.get(entityClass);
+            EntityMetadata<?> metadata = EntityMetadataRegistry.get(entityClass);
+            checkIfClassHasExistingDbTable(metadata);
+
+            ColumnMetadata primaryKey = metadata.getPrimaryKey();
+
+            List<Object> inserts = new ArrayList<>();
+            List<Object> updates = new ArrayList<>();
+            List<Object> upserts = new ArrayList<>();
+            List<Object> unknown = new ArrayList<>();
+            Set<Object> conflicts = Collections.newSetFromMap(new IdentityHashMap<>());
+            Set<Object> missing = Collections.newSetFromMap(new IdentityHashMap<>());
+
+            for (Object entity : group) {
+                long primaryKeyNumber = primaryKey.getLong(entity);
+
+                if (primaryKey.isGenerated()) {
+                    (primaryKeyNumber == 0 ? inserts : updates).add(entity);
+                } else if (context.contains(metadata.getEntityClass(), primaryKeyNumber)) {
+                    updates.add(entity);
+                } else if (metadata.getUpsertSql() != null) {
+                    upserts.add(entity);
+                } else {
+                    unknown.add(entity);
+                }
+            }
+
+            try {
+                Set<Long> existingKeys = findExistingPrimaryKeys(metadata, unknown);
+                for (Object entity : unknown) {
+                    long primaryKeyNumber = primaryKey.getLong(entity);
+                    (existingKeys.contains(primaryKeyNumber) ? updates : inserts).add(entity);
+                }
+
+                if (!inserts.isEmpty()) {
+                    checkIfReferencedTablesExist(metadata);
+
+                    List<List<Object>> parameters = new ArrayList<>();
+                    for (Object entity : inserts) {
+                        parameters.add(getInsertValues(entity, metadata));
+                    }
+
+                    if (primaryKey.isGenerated()) {
+                        executeBatch(metadata.getInsertSql(), parameters, inserts, metadata);
+                    } else {
+                        executeBatch(metadata.getInsertSql(), parameters);
+                    }
+                }
+
+                for (Map.Entry<List<ColumnMetadata>, List<Object>> update :
+                        groupByChangedColumns(updates, metadata, context).entrySet()) {
+                    List<ColumnMetadata> changedColumns = update.getKey();
+                    List<Object> updatedEntities = update.getValue();
+
+                    List<List<Object>> parameters = new ArrayList<>();
+                    for (Object entity : updatedEntities) {
+                        parameters.add(getUpdateValues(entity, metadata, changedColumns));
+                    }
+                    int[] rowsAffected = executeBatch(metadata.getUpdateSql(changedColumns), parameters);
+
+                    // the whole batch has run, so every updated row gets its new version
+                    // before the conflicts of the other rows are reported
+                    for (int i = 0; i < updatedEntities.size(); i++) {
+                        if (rowsAffected[i] == 0) {
+                            (metadata.getVersion() != null ? conflicts : missing).add(updatedEntities.get(i));
+                        } else if (metadata.getVersion() != null) {
+                            incrementVersion(metadata, updatedEntities.get(i));
+                        }
+                    }
+                }
+
+                if (!upserts.isEmpty()) {
+                    checkIfReferencedTablesExist(metadata);
+
+                    List<List<Object>> parameters = new ArrayList<>();
+                    for (Object entity : upserts) {
+                        parameters.add(getInsertValues(entity, metadata));
+                    }
+                    executeBatch(metadata.getUpsertSql(), parameters);
+                }
+            } catch (SQLException e) {
+                throw new EntityManagerException(e.getMessage());
+            }
+
+            for (Object entity : group) {
+                long primaryKeyNumber = primaryKey.getLong(entity);
+                if (primaryKeyNumber != 0) {
+                    // an entity whose row was deleted by someone else is not managed anymore
+                    if (missing.contains(entity)) {
+                        context.remove(metadata.getEntityClass(), primaryKeyNumber, entity);
+                    } else if (!conflicts.contains(entity)) {
+                        context.put(metadata.getEntityClass(), primaryKeyNumber, entity, getSnapshot(entity, metadata));
+                    }
+                    evictFromCache(metadata, primaryKeyNumber);
+                }
+            }
+
+            checkVersionedWrites(metadata, conflicts);
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<?> entities) {
+        List<UnitOfWork.Removal> removals = new ArrayList<>();
+        for (Object entity : entities) {
+            EntityMetadata<?> metadata = EntityMetadataRegistry.get(entity.getClass());
+            long primaryKey = metadata.getPrimaryKey().getLong(entity);
+
+            removals.add(new UnitOfWork.Removal(metadata.getEntityClass(), primaryKey, entity, false));
+        }
+
+        UnitOfWork unitOfWork = this.unitOfWork;
+        if (unitOfWork != null) {
+            removals.forEach(unitOfWork::remove);
+            return;
+        }
 
-            if (this.showSql) {
-                System.out.println("SQL Query:");
-                System.out.printf(query + "%n%n");
+        deleteAll(removals);
+    }
+
+    /**
+     * Deletes the entities with one batch per table, deleting the entities
+     * that reference other entities before the entities they reference.
+     */
+    private void deleteAll(List<UnitOfWork.Removal> removals) {
+        Map<Class<?>, List<UnitOfWork.Removal>> groups = new LinkedHashMap<>();
+        for (UnitOfWork.Removal removal : removals) {
+            groups.computeIfAbsent(removal.entityClass(), entityClass -> new ArrayList<>()).add(removal);
+        }
+
+        List<Class<?>> entityClasses = sortByDependencies(groups.keySet());
+        Collections.reverse(entityClasses);
+
+        for (Class<?> entityClass : entityClasses) {
+            EntityMetadata<?> metadata = EntityMetadataRegistry.get(entityClass);
+            checkIfClassHasExistingDbTable(metadata);
+
+            List<UnitOfWork.Removal> versioned = new ArrayList<>();
+            List<UnitOfWork.Removal> unversioned = new ArrayList<>();
+            for (UnitOfWork.Removal removal : groups.get(entityClass)) {
+                boolean hasVersion = removal.entity() != null && metadata.getVersion() != null;
+                (hasVersion ? versioned : unversioned).add(removal);
             }
 
-            return rowsAffected == 1;
+            deleteBatch(metadata, versioned, true);
+            deleteBatch(metadata, unversioned, false);
+        }
+    }
+
+    private void deleteBatch(EntityMetadata<?> metadata, List<UnitOfWork.Removal> removals, boolean versioned) {
+        if (removals.isEmpty()) {
+            return;
+        }
+
+        List<List<Object>> parameters = new ArrayList<>();
+        for (UnitOfWork.Removal removal : removals) {
+            parameters.add(versioned ? getDeleteValues(removal.entity(), metadata) : List.of(removal.primaryKey()));
+        }
+
+        int[] rowsAffected;
+        try {
+            rowsAffected = executeBatch(versioned ? metadata.getDeleteVersionedSql() : metadata.getDeleteSql(), parameters);
         } catch (SQLException e) {
             throw new EntityManagerException(e.getMessage());
         }
+
+        PersistenceContext context = context();
+        List<Object> conflicts = new ArrayList<>();
+        boolean missing = false;
+
+        for (int i = 0; i < rowsAffected.length; i++) {
+            UnitOfWork.Removal removal = removals.get(i);
+
+            if (versioned && rowsAffected[i] == 0) {
+                conflicts.add(removal.entity());
+            } else {
+                context.remove(metadata.getEntityClass(), removal.primaryKey());
+                missing |= removal.mustExist() && rowsAffected[i] == 0;
+            }
+            evictFromCache(metadata, removal.primaryKey());
+        }
+
+        checkVersionedWrites(metadata, conflicts);
+        if (missing) {
+            throw noSuchEntity(metadata);
+        }
     }
 
     @Override
-    public void remove(Object entity) {
-        Class<?> entityClass = entity.getClass();
+    public <T> T find(Class<T> entityClass, long primaryKey) {
+        EntityMetadata<T> metadata = EntityMetadataRegistry.get(entityClass);
+        PersistenceContext context = context();
+        flush();
+
+        T managedObject = context.get(entityClass, primaryKey);
+        if (managedObject != null) {
+            return managedObject;
+        }
+
+        Object[] cachedState = getFromCache(metadata, primaryKey);
+        if (cachedState != null) {
+            try {
+                T object = assemble(metadata, primaryKey, cachedState, context);
+                resolveForeignKeys(List.of(object), Collections.singletonList(cachedState), metadata, context);
+                return object;
+            } catch (Exception e) {
+                throw new EntityManagerException(e.getMessage());
+            }
+        }
+
+        try {
+            List<T> objects = executeQuery(metadata.getSelectByPrimaryKeySql(), List.of(primaryKey), metadata, context);
 
-        checkIfClassIsValidEntity(entityClass);
-        checkIfClassHasExistingDbTable(entityClass);
+            return objects.isEmpty() ? null : objects.get(0);
+        } catch (Exception e) {
+            throw new EntityManagerException(e.getMessage());
+        }
+    }
 
-        Field primaryKey = getPrimaryKeyField(entityClass);
-        primaryKey.setAccessible(true);
-        Object primaryKeyValue;
+    @Override
+    public <T> List<T> findAll(Class<T> entityClass) {
+        EntityMetadata<T> metadata = EntityMetadataRegistry.get(entityClass);
+        flush();
 
         try {
-            primaryKeyValue = primaryKey.get(entity);
-        } catch (IllegalAccessException e) {
+            return executeQuery(metadata.getSelectSql(), List.of(), metadata, context());
+        } catch (Exception e) {
             throw new EntityManagerException(e.getMessage());
         }
+    }
+
+    @Override
+    public <T> Query<T> from(Class<T> entityClass) {
+        return new Query<>(EntityMetadataRegistry.get(entityClass), this);
+    }
 
-        String tableName = getTableName(entityClass);
+    /**
+     * Executes the SQL compiled by a Query.
+     */
+    <T> List<T> getResultList(EntityMetadata<T> metadata, String query, List<Object> parameters) {
+        flush();
+
+        try {
+            return executeQuery(query, parameters, metadata, context());
+        } catch (Exception e) {
+            throw new EntityManagerException(e.getMessage());
+        }
+    }
 
-        boolean isValid = checkIfEntityExistsInDatabase(entity, entityClass, primaryKeyValue);
-        if (!isValid) {
-            String message = String.format("No such entity found in database \"%s\"", tableName);
+    /**
+     * Executes the SQL compiled by a Query that selects only some fields, and creates
+     * an instance of the result class for every returned row, with the constructor
+     * whose parameters are the selected fields, in the same order.
+     * Foreign keys are passed as the primary keys of the referenced entities.
+     *
+     * The result class can not be an entity: an entity with only some fields set
+     * would overwrite its other columns with nulls if it was persisted.
+     */
+    <R> List<R> getProjectedResultList(Class<R> resultClass, EntityMetadata<?> metadata,
+                                       List<ColumnMetadata> columns, String query, List<Object> parameters) {
+        if (resultClass.isAnnotationPresent(Entity.class)) {
+            String message = String.format("Fields can not be selected into entity \"%s\"; use a record or another class instead.",
+                    resultClass.getName());
             throw new EntityManagerException(message);
         }
 
-        String query = String.format("delete from `%s` where `%s` = '%s'",
-                tableName, primaryKey.getName(), primaryKeyValue);
+        Constructor<R> constructor = getProjectionConstructor(resultClass, columns);
+        Class<?>[] parameterTypes = constructor.getParameterTypes();
+        flush();
 
         try {
-            PreparedStatement removeQuery = connection.prepareStatement(query);
-            removeQuery.execute();
+            List<Object[]> states = selectStates(query, parameters, metadata, columns, true);
+
+            List<R> results = new ArrayList<>();
+            for (Object[] state : states) {
+                Object[] arguments = new Object[columns.size()];
+                for (int i = 0; i < arguments.length; i++) {
+                    ColumnMetadata column = columns.get(i);
+                    Object value = state[column.getIndex()];
+
+                    arguments[i] = value instanceof Number number ? toParameterType(parameterTypes[i], number) : value;
+                }
 
-            if (this.showSql) {
-                System.out.println("SQL Query:");
-                System.out.printf(query + "%n%n");
+                results.add(constructor.newInstance(arguments));
             }
+
+            return results;
+        } catch (Exception e) {
+            throw new EntityManagerException(e.getMessage());
+        }
+    }
+
+    @Override
+    public <T> Page<T> findPage(Class<T> entityClass, long afterPrimaryKey, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("The page limit must be a positive number.");
+        }
+
+        EntityMetadata<T> metadata = EntityMetadataRegistry.get(entityClass);
+        flush();
+
+        try {
+            // one more row than the limit tells if there is a next page;
+            // added as a long, since it does not fit in an int for Integer.MAX_VALUE
+            List<T> objects = executeQuery(metadata.getSelectPageSql(),
+                    List.of(afterPrimaryKey, limit + 1L), metadata, context());
+
+            boolean hasNextPage = objects.size() > limit;
+            List<T> content = hasNextPage ? objects.subList(0, limit) : objects;
+
+            return new Page<>(entityClass, content, limit, hasNextPage, this);
+        } catch (Exception e) {
+            throw new EntityManagerException(e.getMessage());
+        }
+    }
+
+    @Override
+    public <T> Stream<T> stream(String SQL, Class<T> resultClass) {
+        EntityMetadata<T> metadata = EntityMetadataRegistry.get(resultClass);
+        flush();
+
+        try {
+            EntityIterator<T> iterator = new EntityIterator<>(SQL, metadata);
+
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                    Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(iterator::close);
         } catch (SQLException e) {
             throw new EntityManagerException(e.getMessage());
         }
     }
 
     @Override
-    public <T> T find(Class<T> entityClass, long primaryKey) {
-        String tableName = getTableName(entityClass);
-        String allColumnNames = getAllColumnNames(entityClass, true);
-        Field primaryKeyField = getPrimaryKeyField(entityClass);
+    public <T> Stream<T> streamAll(Class<T> entityClass) {
+        return stream(EntityMetadataRegistry.get(entityClass).getSelectSql(), entityClass);
+    }
+
+    @Override
+    public <T> void validateSchema(Class<T> table) {
+        EntityMetadata<T> metadata = EntityMetadataRegistry.get(table);
 
-        String query = String.format("select %s from `%s` where `%s` = '%s'",
-                allColumnNames, tableName, primaryKeyField.getName(), primaryKey);
+        String query = String.format("show columns from `%s`", metadata.getTableName());
 
         try {
-            PreparedStatement findObjectQuery = connection.prepareStatement(query);
-            ResultSet resultSet = findObjectQuery.executeQuery();
+            Set<String> databaseColumns = new HashSet<>();
 
-            if (this.showSql) {
-                System.out.println("SQL Query:");
-                System.out.printf(query + "%n%n");
+            try (StatementLease showColumnsQuery = statementSource.leaseOnce(query);
+                 ResultSet resultSet = showColumnsQuery.getStatement().executeQuery()) {
+                while (resultSet.next()) {
+                    databaseColumns.add(resultSet.getString("Field").toLowerCase(Locale.ROOT));
+                }
             }
 
-            if (!resultSet.next()) {
-                return null;
+            List<String> missingColumns = new ArrayList<>();
+            for (ColumnMetadata column : metadata.getColumns()) {
+                if (!databaseColumns.contains(column.getName().toLowerCase(Locale.ROOT))) {
+                    missingColumns.add(column.getName());
+                }
             }
 
-            Constructor<T> constructor = entityClass.getDeclaredConstructor();
-            constructor.setAccessible(true);
-            T object = constructor.newInstance();
+            if (!missingColumns.isEmpty()) {
+                String message = String.format("Table \"%s\" is missing the columns %s of entity \"%s\".",
+                        metadata.getTableName(), missingColumns, table.getName());
+                throw new EntityManagerException(message);
+            }
+        } catch (SQLException e) {
+            throw new EntityManagerException(e.getMessage());
+        }
+    }
 
-            for (Field field : entityClass.getDeclaredFields()) {
-                field.setAccessible(true);
+    @Override
+    public void detach(Object entity) {
+        EntityMetadata<?> metadata = EntityMetadataRegistry.get(entity.getClass());
+        long primaryKey = metadata.getPrimaryKey().getLong(entity);
 
-                if (!field.isAnnotationPresent(Id.class) &&
-                        !field.isAnnotationPresent(Column.class) &&
-                        !field.isAnnotationPresent(ForeignKey.class)) {
-                    continue;
-                }
+        context().remove(metadata.getEntityClass(), primaryKey, entity);
+    }
 
-                Object value = getFieldValue(resultSet, field);
-                setValueToField(object, field, value);
-            }
+    @Override
+    public void clear() {
+        context().clear();
+    }
 
-            return object;
-        } catch (Exception e) {
+    @Override
+    public void begin() {
+        if (connection == null) {
+            throw new EntityManagerException("A shared EntityManager can not begin a transaction, use inTransaction() instead.");
+        }
+
+        if (unitOfWork != null) {
+            throw new EntityManagerException("A transaction is already active.");
+        }
+
+        try {
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
             throw new EntityManagerException(e.getMessage());
         }
+
+        unitOfWork = new UnitOfWork();
     }
 
     @Override
-    public <T> List<T> findAll(Class<T> entityClass) {
-        String tableName = getTableName(entityClass);
-        String allColumnNames = getAllColumnNames(entityClass, true);
+    public void flush() {
+        UnitOfWork unitOfWork = this.unitOfWork;
+        if (unitOfWork == null || unitOfWork.isEmpty()) {
+            return;
+        }
+
+        try {
+            writeAll(unitOfWork.takePersists());
+            deleteAll(unitOfWork.takeRemovals());
+        } catch (RuntimeException e) {
+            // the batches that already ran can not be undone alone, and the failed
+            // writes are no longer queued, so the transaction can not be committed
+            throw rollbackAfter(e);
+        }
+    }
 
-        String query = String.format("select %s from `%s`", allColumnNames, tableName);
+    @Override
+    public void commit() {
+        checkIfTransactionIsActive();
 
         try {
-            PreparedStatement findAllQuery = connection.prepareStatement(query);
-            ResultSet resultSet = findAllQuery.executeQuery();
+            flush();
+            connection.commit();
+        } catch (SQLException e) {
+            throw rollbackAfter(new EntityManagerException(e.getMessage()));
+        } catch (RuntimeException e) {
+            if (isTransactionActive()) {
+                throw rollbackAfter(e);
+            }
+            throw e;
+        }
+
+        endTransaction();
+    }
+
+    /**
+     * Rolls back the active transaction after the given failure, and returns
+     * the failure to be thrown, with a failure of the rollback itself suppressed.
+     */
+    private RuntimeException rollbackAfter(RuntimeException failure) {
+        try {
+            rollback();
+        } catch (RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+
+        return failure;
+    }
+
+    @Override
+    public void rollback() {
+        checkIfTransactionIsActive();
+
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            throw new EntityManagerException(e.getMessage());
+        } finally {
+            // the entities may hold generated keys and versions that were rolled back
+            context().clear();
+            endTransaction();
+        }
+    }
 
-            if (this.showSql) {
-                System.out.println("SQL Query:");
-                System.out.printf(query + "%n%n");
+    @Override
+    public boolean isTransactionActive() {
+        return unitOfWork != null;
+    }
+
+    @Override
+    public void inTransaction(Consumer<EntityManager> work) {
+        if (connection == null) {
+            try (EntityManagerImpl entityManager = new EntityManagerImpl(dataSource.getConnection(), true, entityCache, schemaRegistry)) {
+                entityManager.showSql(showSql);
+                entityManager.fetchBatchSize(fetchBatchSize);
+                entityManager.batchSize(batchSize);
+
+                entityManager.inTransaction(work);
+            } catch (SQLException e) {
+                throw new EntityManagerException(e.getMessage());
             }
+            return;
+        }
 
-            List<T> objects = new ArrayList<>();
+        begin();
+        try {
+            work.accept(this);
+        } catch (RuntimeException | Error e) {
+            if (isTransactionActive()) {
+                rollback();
+            }
+            throw e;
+        }
 
-            boolean originalValue = showSql;
-            showSql = false;
-            while (resultSet.next()) {
-                Field primaryKeyField = getPrimaryKeyField(entityClass);
-                Object primaryKey = resultSet.getObject(primaryKeyField.getName());
+        commit();
+    }
 
-                T object = find(entityClass, Long.parseLong(String.valueOf(primaryKey)));
-                objects.add(object);
+    private void checkIfTransactionIsActive() {
+        if (unitOfWork == null) {
+            throw new EntityManagerException("There is no active transaction.");
+        }
+    }
+
+    /**
+     * Returns the connection to auto-commit mode, and evicts the entities written
+     * by the transaction from the second-level cache again, since other EntityManager
+     * instances may have cached their old state before the transaction ended.
+     */
+    private void endTransaction() {
+        UnitOfWork unitOfWork = this.unitOfWork;
+        this.unitOfWork = null;
+
+        if (entityCache != null) {
+            for (UnitOfWork.EntityKey key : unitOfWork.getWritten()) {
+                entityCache.evict(key.entityClass(), key.primaryKey());
             }
-            showSql = originalValue;
+        }
 
-            return objects;
-        } catch (Exception e) {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
             throw new EntityManagerException(e.getMessage());
         }
     }
 
+    @Override
+    public void refreshSchema() {
+        schemaRegistry.load(readTableNames());
+    }
+
     @Override
     public void showSql(boolean value) {
         this.showSql = value;
     }
 
-    private void checkIfClassIsValidEntity(Class<?> clazz) {
-        if (!clazz.isAnnotationPresent(Entity.class)) {
-            String exceptionMessage = String.format
-                    ("Entity \"%s\" is not annotated as a database entity.", clazz.getName());
-            throw new AnnotationException(exceptionMessage);
+    @Override
+    public void fetchBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The fetch batch size must be a positive number.");
         }
 
-        if (!clazz.isAnnotationPresent(Table.class)) {
-            String exceptionMessage = String.format
-                    ("Entity \"%s\" is not annotated as a database table.", clazz.getName());
-            throw new AnnotationException(exceptionMessage);
+        this.fetchBatchSize = size;
+    }
+
+    @Override
+    public void batchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The batch size must be a positive number.");
         }
 
-        List<Field> primaryKeyList = Arrays.stream(clazz.getDeclaredFields())
-                .filter(field -> field.isAnnotationPresent(Id.class))
-                .collect(Collectors.toList());
+        this.batchSize = size;
+    }
+
+    @Override
+    public int getOpenStatementCount() {
+        return statementSource.getOpenStatementCount();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (isTransactionActive()) {
+                rollback();
+            }
 
-        if (primaryKeyList.isEmpty()) {
-            String message = String.format("Entity \"%s\" does not have a specified primary key.", clazz.getName());
-            throw new AnnotationException(message);
+            context().clear();
+            statementSource.close();
+        } catch (SQLException e) {
+            throw new EntityManagerException(e.getMessage());
+        } finally {
+            try {
+                if (ownsConnection) {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                throw new EntityManagerException(e.getMessage());
+            }
         }
+    }
+
+    /**
+     * Returns the persistence context of a bound EntityManager,
+     * or a new one for every call of a shared EntityManager.
+     */
+    private PersistenceContext context() {
+        return persistenceContext != null ? persistenceContext : new PersistenceContext();
+    }
 
-        if (primaryKeyList.size() > 1) {
-            String message = String.format("Entity \"%s\" has more than one primary key.", clazz.getName());
-            throw new AnnotationException(message);
+    private void checkIfReferencedTablesExist(EntityMetadata<?> metadata) {
+        for (ColumnMetadata foreignKey : metadata.getForeignKeys()) {
+            checkIfClassHasExistingDbTable(EntityMetadataRegistry.get(foreignKey.getReferencedClass()));
         }
+    }
 
-        Class<?> primaryKey = primaryKeyList.get(0).getType();
-        if (primaryKey != int.class && primaryKey != Integer.class && primaryKey != long.class && primaryKey != Long.class) {
-            String message = String.format("Entity \"%s\" has a primary key with type other that int or long.", clazz.getName());
+    private void checkIfClassHasExistingDbTable(EntityMetadata<?> metadata) {
+        if (!schemaRegistry.contains(metadata.getTableName(), this::readTableNames)) {
+            String message = String.format("Entity \"%s\" does not have an existing database table yet.",
+                    metadata.getEntityClass().getName());
             throw new EntityManagerException(message);
         }
     }
 
-    private void checkIfClassHasExistingDbTable(Class<?> table) {
-        String query = String.format("select table_name from information_schema.tables where table_name = '%s'",
-                getTableName(table));
+    /**
+     * Reads the names of all tables of the database, to be loaded into the schema registry.
+     */
+    private List<String> readTableNames() {
+        String query = SchemaRegistry.TABLE_NAMES_SQL;
 
-        try {
-            PreparedStatement statement = connection.prepareStatement(query);
-            ResultSet resultSet = statement.executeQuery();
+        try (StatementLease lease = statementSource.lease(query, false);
+             ResultSet resultSet = lease.getStatement().executeQuery()) {
+            List<String> tableNames = new ArrayList<>();
+            while (resultSet.next()) {
+                tableNames.add(resultSet.getString(1));
+            }
 
-            if (!resultSet.next()) {
-                String message = String.format("Entity \"%s\" does not have an existing database table yet.", table.getName());
-                throw new EntityManagerException(message);
+            printQuery(query, List.of());
+
+            return tableNames;
+        } catch (SQLException e) {
+            throw new EntityManagerException(e.getMessage());
+        }
+    }
+
+    /**
+     * Whether a hand-written statement may create, drop or rename a table.
+     */
+    private boolean isSchemaChange(String SQL) {
+        String statement = SQL.stripLeading().toLowerCase(Locale.ROOT);
+        return statement.startsWith("create") || statement.startsWith("drop")
+                || statement.startsWith("rename") || statement.startsWith("alter");
+    }
+
+    /**
+     * Executes an insert, update or delete statement
+     * from the statement cache, with the given parameters.
+     */
+    private int executeUpdate(String query, List<Object> parameters) throws SQLException {
+        try (StatementLease lease = statementSource.lease(query, false)) {
+            PreparedStatement statement = lease.getStatement();
+
+            JdbcValues.bind(statement, parameters);
+            int rowsAffected = statement.executeUpdate();
+
+            printQuery(query, parameters);
+
+            return rowsAffected;
+        }
+    }
+
+    /**
+     * Executes an insert statement of an entity with a generated primary key,
+     * and sets the key generated by the database to the primary key field of the entity.
+     */
+    private int executeInsert(String query, List<Object> parameters, Object entity, EntityMetadata<?> metadata)
+            throws SQLException {
+        try (StatementLease lease = statementSource.lease(query, true)) {
+            PreparedStatement statement = lease.getStatement();
+
+            JdbcValues.bind(statement, parameters);
+            int rowsAffected = statement.executeUpdate();
+
+            printQuery(query, parameters);
+
+            setGeneratedKeys(statement, List.of(entity), metadata);
+
+            return rowsAffected;
+        }
+    }
+
+    /**
+     * Sets the keys generated by the last execution of the statement
+     * to the primary key fields of the given entities, in the same order.
+     */
+    private void setGeneratedKeys(PreparedStatement statement, List<?> entities, EntityMetadata<?> metadata)
+            throws SQLException {
+        ColumnMetadata primaryKey = metadata.getPrimaryKey();
+
+        try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+            for (Object entity : entities) {
+                if (!generatedKeys.next()) {
+                    break;
+                }
+
+                primaryKey.setValue(entity, primaryKey.toFieldType(generatedKeys.getLong(1)));
+            }
+        }
+    }
+
+    /**
+     * Executes a select statement generated from the metadata, from the statement cache,
+     * with the given parameters, and creates an entity for every returned row.
+     * The rows are put into the second-level cache, since they have the columns
+     * of the entity as they are in the database.
+     */
+    private <T> List<T> executeQuery(String query, List<Object> parameters, EntityMetadata<T> metadata,
+                                     PersistenceContext context) throws SQLException {
+        long readStartedAt = System.nanoTime();
+        List<Object[]> states = selectStates(query, parameters, metadata, true);
+        putInCache(metadata, states, readStartedAt);
+
+        return materialize(metadata, states, context);
+    }
+
+    /**
+     * Executes a select statement and returns the column values of every returned row.
+     * The statement is given back before the entities are created, so the foreign keys
+     * are never resolved while a statement (or a pooled connection) is still in use.
+     */
+    private List<Object[]> selectStates(String query, List<Object> parameters, EntityMetadata<?> metadata,
+                                        boolean print) throws SQLException {
+        return selectStates(query, parameters, metadata, metadata.getColumns(), print);
+    }
+
+    /**
+     * Same as selectStates(), for a select statement that selects only the given columns.
+     * The values of the other columns are left null.
+     */
+    private List<Object[]> selectStates(String query, List<Object> parameters, EntityMetadata<?> metadata,
+                                        List<ColumnMetadata> columns, boolean print) throws SQLException {
+        try (StatementLease lease = statementSource.lease(query, false)) {
+            PreparedStatement statement = lease.getStatement();
+            JdbcValues.bind(statement, parameters);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (print) {
+                    printQuery(query, parameters);
+                }
+
+                return readRows(resultSet, metadata, columns);
             }
+        }
+    }
+
+    /**
+     * Returns the column values of the entity with the given primary key,
+     * as they are stored in the database, or null if there is no such entity.
+     * The query is not printed and no entity is created.
+     */
+    private Object[] findState(EntityMetadata<?> metadata, long primaryKey) {
+        try {
+            List<Object[]> states = selectStates(metadata.getSelectByPrimaryKeySql(), List.of(primaryKey), metadata, false);
+
+            return states.isEmpty() ? null : states.get(0);
         } catch (SQLException e) {
             throw new EntityManagerException(e.getMessage());
         }
     }
 
-    private Object getFieldValue(ResultSet resultSet, Field field) throws SQLException {
-        Object value = null;
+    /**
+     * Executes a statement from the statement cache once for every list of parameters,
+     * sending them to the database in batches of at most batchSize statements.
+     */
+    private int[] executeBatch(String query, List<List<Object>> parametersList) throws SQLException {
+        return executeBatch(query, parametersList, null, null);
+    }
+
+    /**
+     * Executes a batch of statements, and returns the number of rows affected by each statement.
+     * If the given entities are not null, the keys
+     * generated by the database are set to the primary key fields of the entities.
+     */
+    private int[] executeBatch(String query, List<List<Object>> parametersList,
+                               List<?> entities, EntityMetadata<?> metadata) throws SQLException {
+        boolean returnGeneratedKeys = entities != null;
+        int[] rowsAffected = new int[parametersList.size()];
+
+        try (StatementLease lease = statementSource.lease(query, returnGeneratedKeys)) {
+            PreparedStatement statement = lease.getStatement();
+
+            for (int from = 0; from < parametersList.size(); from += batchSize) {
+                int to = Math.min(from + batchSize, parametersList.size());
+                List<List<Object>> chunk = parametersList.subList(from, to);
+
+                for (List<Object> parameters : chunk) {
+                    JdbcValues.bind(statement, parameters);
+                    statement.addBatch();
+                }
+
+                int[] chunkRowsAffected = statement.executeBatch();
+                System.arraycopy(chunkRowsAffected, 0, rowsAffected, from, chunkRowsAffected.length);
 
-        if (field.isAnnotationPresent(Id.class)) {
-            value = resultSet.getObject(getColumnName(field, Id.class));
-        } else if (field.isAnnotationPresent(Column.class)) {
-            value = resultSet.getObject(getColumnName(field, Column.class));
-        } else if (field.isAnnotationPresent(ForeignKey.class)) {
-            Object foreignKeyField = resultSet.getObject(getColumnName(field, ForeignKey.class));
-            long fkFieldPrimaryKey = Long.parseLong(String.valueOf(foreignKeyField));
+                if (returnGeneratedKeys) {
+                    setGeneratedKeys(statement, entities.subList(from, to), metadata);
+                }
 
-            boolean originalValue = showSql;
-            showSql = false;
-            value = find(field.getType(), fkFieldPrimaryKey);
-            showSql = originalValue;
+                if (this.showSql) {
+                    System.out.println("SQL Query:");
+                    System.out.println(query);
+                    System.out.printf("Batch of %d statements%n%n", chunk.size());
+                }
+            }
         }
 
-        return value;
+        return rowsAffected;
     }
 
-    private void setValueToField(Object object, Field field, Object value) throws IllegalAccessException {
-        Class<?> fieldType = field.getType();
-        if (fieldType == LocalDate.class) {
-            LocalDate date = LocalDate.parse(String.valueOf(value));
-            field.set(object, date);
-        } else if (fieldType == LocalDateTime.class) {
-            LocalDateTime dateTime = LocalDateTime.parse(String.valueOf(value));
-            field.set(object, dateTime);
-        } else {
-            field.set(object, value);
+    private void printQuery(String query, List<Object> parameters) {
+        if (!this.showSql) {
+            return;
+        }
+
+        System.out.println("SQL Query:");
+        System.out.println(query);
+        if (!parameters.isEmpty()) {
+            System.out.println("Parameters: " + parameters);
         }
+        System.out.println();
+    }
+
+    /**
+     * Reads the column values of every row of the result set.
+     */
+    private List<Object[]> readRows(ResultSet resultSet, EntityMetadata<?> metadata) throws SQLException {
+        return readRows(resultSet, metadata, metadata.getColumns());
     }
 
-    private <T> String getTableName(Class<T> table) {
-        Table tableAnnotation = table.getAnnotation(Table.class);
-        String tableName = tableAnnotation.name();
+    private List<Object[]> readRows(ResultSet resultSet, EntityMetadata<?> metadata, List<ColumnMetadata> columns)
+            throws SQLException {
+        int[] positions = getColumnPositions(resultSet, columns);
+
+        List<Object[]> states = new ArrayList<>();
+        while (resultSet.next()) {
+            states.add(readRow(resultSet, metadata, columns, positions));
+        }
 
-        return tableName.trim().isEmpty() ? table.getSimpleName() : tableName;
+        return states;
     }
 
-    private <T> String getColumnsInitialization(Class<T> table) {
-        List<String> columns = new ArrayList<>();
-        List<Field> foreignKeyFields = new ArrayList<>();
+    /**
+     * Reads the values of the given columns of the current row, each with the
+     * decoder of its field type, into an array indexed by the index of the column.
+     */
+    private Object[] readRow(ResultSet resultSet, EntityMetadata<?> metadata, List<ColumnMetadata> columns,
+                             int[] positions) throws SQLException {
+        Object[] state = new Object[metadata.getColumns().size()];
+        for (int i = 0; i < positions.length; i++) {
+            ColumnMetadata column = columns.get(i);
+            state[column.getIndex()] = column.decode(resultSet, positions[i]);
+        }
+
+        return state;
+    }
+
+    /**
+     * Finds the positions of the given columns in the result set once,
+     * so that the rows are read by position instead of by column name.
+     */
+    private int[] getColumnPositions(ResultSet resultSet, List<ColumnMetadata> columns) throws SQLException {
+        int[] positions = new int[columns.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = resultSet.findColumn(columns.get(i).getName());
+        }
+
+        return positions;
+    }
+
+    /**
+     * Creates an entity for every row read from the database. The foreign keys
+     * are resolved after all entities are created, so every distinct
+     * referenced entity is retrieved only once.
+     * Rows of entities that are already in the persistence context
+     * are returned as the existing instances.
+     */
+    private <T> List<T> materialize(EntityMetadata<T> metadata, List<Object[]> states, PersistenceContext context)
+            throws SQLException {
+        int primaryKeyIndex = metadata.getPrimaryKey().getIndex();
+
+        List<T> objects = new ArrayList<>();
+        List<T> newObjects = new ArrayList<>();
+        List<Object[]> newStates = new ArrayList<>();
+        for (Object[] state : states) {
+            long primaryKey = ((Number) state[primaryKeyIndex]).longValue();
+
+            T managedObject = context.get(metadata.getEntityClass(), primaryKey);
+            if (managedObject != null) {
+                objects.add(managedObject);
+                continue;
+            }
 
-        for (Field field : table.getDeclaredFields()) {
-            field.setAccessible(true);
+            T object = assemble(metadata, primaryKey, state, context);
+            objects.add(object);
+            newObjects.add(object);
+            newStates.add(state);
+        }
+
+        resolveForeignKeys(newObjects, newStates, metadata, context);
+
+        return objects;
+    }
+
+    /**
+     * Creates an entity from the column values read from the database,
+     * except for its foreign keys, and adds it to the persistence context.
+     */
+    private <T> T assemble(EntityMetadata<T> metadata, long primaryKey, Object[] state, PersistenceContext context) {
+        T object = metadata.newInstance();
+
+        for (ColumnMetadata column : metadata.getColumns()) {
+            if (!column.isForeignKey()) {
+                column.setValue(object, state[column.getIndex()]);
+            }
+        }
 
-            String columnName;
-            String columnType;
-            String columnConstraints;
+        context.put(metadata.getEntityClass(), primaryKey, object, state);
 
-            if (field.isAnnotationPresent(Id.class)) {
-                columnName = getColumnName(field, Id.class);
-                columnType = getColumnSqlType(field, null);
-                columnConstraints = "primary key";
+        return object;
+    }
+
+    private void resolveForeignKeys(List<?> objects, List<Object[]> states, EntityMetadata<?> metadata,
+                                    PersistenceContext context) throws SQLException {
+        for (ColumnMetadata foreignKey : metadata.getForeignKeys()) {
+            List<Object> foreignKeyValues = new ArrayList<>();
+            for (Object[] state : states) {
+                foreignKeyValues.add(state[foreignKey.getIndex()]);
+            }
+
+            resolveForeignKey(objects, foreignKey, foreignKeyValues, context);
+        }
+    }
 
-                if (field.isAnnotationPresent(GeneratedValue.class)) {
-                    columnConstraints += " auto_increment";
+    private void resolveForeignKey(List<?> objects, ColumnMetadata foreignKey, List<Object> foreignKeyValues,
+                                   PersistenceContext context) throws SQLException {
+        Class<?> referencedClass = foreignKey.getReferencedClass();
+
+        if (foreignKey.isLazy()) {
+            for (int i = 0; i < objects.size(); i++) {
+                Object foreignKeyValue = foreignKeyValues.get(i);
+                if (foreignKeyValue != null) {
+                    Ref<?> reference = new Ref<>(referencedClass, ((Number) foreignKeyValue).longValue(), null, this, false);
+                    foreignKey.setValue(objects.get(i), reference);
                 }
-            } else if (field.isAnnotationPresent(Column.class)) {
-                Column column = field.getAnnotation(Column.class);
+            }
+            return;
+        }
 
-                columnName = getColumnName(field, Column.class);
-                columnType = getColumnSqlType(field, column);
-                columnConstraints = getColumnConstraints(column);
-            } else if (field.isAnnotationPresent(ForeignKey.class)) {
-                Class<?> fieldClass = field.getType();
+        Set<Long> primaryKeys = new LinkedHashSet<>();
+        for (Object foreignKeyValue : foreignKeyValues) {
+            if (foreignKeyValue != null) {
+                primaryKeys.add(((Number) foreignKeyValue).longValue());
+            }
+        }
 
-                checkIfClassIsValidEntity(fieldClass);
-                checkIfClassHasExistingDbTable(fieldClass);
+        Map<Long, ?> referencedObjects = findByPrimaryKeys(EntityMetadataRegistry.get(referencedClass), primaryKeys, context);
 
-                Field primaryKeyField = getPrimaryKeyField(fieldClass);
-                primaryKeyField.setAccessible(true);
+        for (int i = 0; i < objects.size(); i++) {
+            Object foreignKeyValue = foreignKeyValues.get(i);
+            if (foreignKeyValue == null) {
+                continue;
+            }
 
-                ForeignKey foreignKey = field.getAnnotation(ForeignKey.class);
+            long primaryKey = ((Number) foreignKeyValue).longValue();
+            Object referencedObject = referencedObjects.get(primaryKey);
 
-                columnName = getColumnName(field, ForeignKey.class);
-                columnType = getColumnSqlType(primaryKeyField, null);
-                columnConstraints = getColumnConstraints(foreignKey);
+            if (foreignKey.isReference()) {
+                referencedObject = createLoadedReference(referencedClass, primaryKey, referencedObject);
+            }
 
-                foreignKeyFields.add(field);
-            } else {
+            foreignKey.setValue(objects.get(i), referencedObject);
+        }
+    }
+
+    private <T> Ref<T> createLoadedReference(Class<T> referencedClass, long primaryKey, Object referencedObject) {
+        return new Ref<>(referencedClass, primaryKey, referencedClass.cast(referencedObject), this, true);
+    }
+
+    /**
+     * Retrieves the entities with the given primary keys using
+     * "where id in (...)" queries, each with at most fetchBatchSize keys.
+     */
+    private <T> Map<Long, T> findByPrimaryKeys(EntityMetadata<T> metadata, Collection<Long> primaryKeys,
+                                               PersistenceContext context) throws SQLException {
+        Map<Long, T> objects = new HashMap<>();
+
+        List<Long> keys = new ArrayList<>();
+        List<T> cachedObjects = new ArrayList<>();
+        List<Object[]> cachedStates = new ArrayList<>();
+        for (Long key : primaryKeys) {
+            T managedObject = context.get(metadata.getEntityClass(), key);
+            if (managedObject != null) {
+                objects.put(key, managedObject);
                 continue;
             }
 
-            String columnInitialization = String.format("`%s` %s %s",
-                    columnName, columnType, columnConstraints);
-            columns.add(columnInitialization);
+            Object[] cachedState = getFromCache(metadata, key);
+            if (cachedState != null) {
+                T cachedObject = assemble(metadata, key, cachedState, context);
+                objects.put(key, cachedObject);
+                cachedObjects.add(cachedObject);
+                cachedStates.add(cachedState);
+            } else {
+                keys.add(key);
+            }
         }
 
-        addForeignKeyConstraints(columns, foreignKeyFields, table);
+        resolveForeignKeys(cachedObjects, cachedStates, metadata, context);
 
-        return String.join(String.format(",%n"), columns);
+        ColumnMetadata primaryKey = metadata.getPrimaryKey();
+
+        for (int from = 0; from < keys.size(); from += fetchBatchSize) {
+            List<Long> chunk = keys.subList(from, Math.min(from + fetchBatchSize, keys.size()));
+
+            List<Object> parameters = padInList(chunk, fetchBatchSize);
+            String query = metadata.getSelectByPrimaryKeysSql(parameters.size());
+
+            for (T object : executeQuery(query, parameters, metadata, context)) {
+                objects.put(primaryKey.getLong(object), object);
+            }
+        }
+
+        return objects;
     }
 
-    private String getColumnName(Field field, Class<?> annotationType) {
-        String columnName = "";
+    /**
+     * Returns which of the primary keys of the given entities already exist in the database,
+     * using "select id from table where id in (...)" queries.
+     */
+    private Set<Long> findExistingPrimaryKeys(EntityMetadata<?> metadata, List<Object> entities) throws SQLException {
+        Set<Long> existingKeys = new HashSet<>();
+        ColumnMetadata primaryKey = metadata.getPrimaryKey();
+
+        for (int from = 0; from < entities.size(); from += fetchBatchSize) {
+            List<Object> chunk = entities.subList(from, Math.min(from + fetchBatchSize, entities.size()));
 
-        if (annotationType == Column.class) {
-            columnName = field.getAnnotation(Column.class).name();
-        } else if (annotationType == Id.class) {
-            columnName = field.getAnnotation(Id.class).name();
-        } else if (annotationType == ForeignKey.class) {
-            columnName = field.getAnnotation(ForeignKey.class).name();
+            List<Object> keys = new ArrayList<>();
+            for (Object entity : chunk) {
+                keys.add(primaryKey.getValue(entity));
+            }
+
+            List<Object> parameters = padInList(keys, fetchBatchSize);
+            String query = String.format("select `%s` from `%s` where `%s` in (%s)",
+                    primaryKey.getName(), metadata.getTableName(), primaryKey.getName(),
+                    String.join(", ", Collections.nCopies(parameters.size(), "?")));
+
+            try (StatementLease lease = statementSource.lease(query, false)) {
+                PreparedStatement statement = lease.getStatement();
+                JdbcValues.bind(statement, parameters);
+
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    printQuery(query, parameters);
+
+                    while (resultSet.next()) {
+                        existingKeys.add(resultSet.getLong(1));
+                    }
+                }
+            }
         }
 
-        return columnName.trim().isEmpty() ? field.getName() : columnName;
+        return existingKeys;
     }
 
-    private String getColumnSqlType(Field field, Column columnAnnotation) {
-        Class<?> fieldType = field.getType();
-        String sqlType = "";
+    /**
+     * Pads the parameters of an "in (...)" list to the next power of two (or to maxSize)
+     * by repeating the last one, so a few statements, prepared once, serve every list size.
+     */
+    static List<Object> padInList(List<?> parameters, int maxSize) {
+        int size = parameters.size();
+        int paddedSize = size <= 1 ? size : Math.min(Integer.highestOneBit(size - 1) << 1, Math.max(maxSize, size));
+
+        List<Object> padded = new ArrayList<>(paddedSize);
+        padded.addAll(parameters);
+        while (padded.size() < paddedSize) {
+            padded.add(parameters.get(size - 1));
+        }
+
+        return padded;
+    }
 
-        if (fieldType == String.class) {
-            int length = columnAnnotation.length();
-            sqlType = String.format("varchar(%d)", length);
-        } else if (fieldType == char.class || fieldType == Character.class) {
-            sqlType = "char(1)";
-        } else if (fieldType == int.class || fieldType == Integer.class) {
-            sqlType = "int";
-        } else if (fieldType == long.class || fieldType == Long.class) {
-            sqlType = "bigint";
-        } else if (fieldType == double.class || fieldType == Double.class) {
-            sqlType = "double";
-        } else if (fieldType == float.class || fieldType == Float.class) {
-            sqlType = "float";
-        } else if (fieldType == boolean.class || fieldType == Boolean.class) {
-            sqlType = "bit(1)";
-        } else if (fieldType == LocalDate.class) {
-            sqlType = "date";
-        } else if (fieldType == LocalDateTime.class) {
-            sqlType = "datetime";
+    /**
+     * Groups the entities by their class, keeping the order in which
+     * the classes first appear.
+     */
+    private Map<Class<?>, List<Object>> groupByClass(Collection<?> entities) {
+        Map<Class<?>, List<Object>> groups = new LinkedHashMap<>();
+        for (Object entity : entities) {
+            groups.computeIfAbsent(entity.getClass(), entityClass -> new ArrayList<>()).add(entity);
         }
 
-        return sqlType;
+        return groups;
     }
 
-    private String getColumnConstraints(Column columnAnnotation) {
-        String nullable = "null";
+    /**
+     * Orders the entity classes so that every class comes after
+     * the classes referenced by its foreign keys.
+     */
+    static List<Class<?>> sortByDependencies(Collection<Class<?>> entityClasses) {
+        Set<Class<?>> sorted = new LinkedHashSet<>();
+        for (Class<?> entityClass : entityClasses) {
+            addAfterDependencies(entityClass, entityClasses, sorted, new HashSet<>());
+        }
+
+        return new ArrayList<>(sorted);
+    }
 
-        if (!columnAnnotation.nullable()) {
-            nullable = "not null";
+    private static void addAfterDependencies(Class<?> entityClass, Collection<Class<?>> entityClasses,
+                                      Set<Class<?>> sorted, Set<Class<?>> visiting) {
+        // a class already being visited is part of a cycle, which can not be ordered
+        if (sorted.contains(entityClass) || !visiting.add(entityClass)) {
+            return;
         }
 
-        if (columnAnnotation.unique()) {
-            String unique = "unique";
-            return nullable + " " + unique;
+        for (ColumnMetadata foreignKey : EntityMetadataRegistry.get(entityClass).getForeignKeys()) {
+            if (entityClasses.contains(foreignKey.getReferencedClass())) {
+                addAfterDependencies(foreignKey.getReferencedClass(), entityClasses, sorted, visiting);
+            }
         }
 
-        return nullable;
+        sorted.add(entityClass);
     }
 
-    private String getColumnConstraints(ForeignKey foreignKeyAnnotation) {
-        String nullable = "null";
+    /**
+     * Puts the rows read by a generated select into the second-level cache. The rows of
+     * hand-written SQL are never cached, since their columns may be aliased or computed.
+     */
+    private void putInCache(EntityMetadata<?> metadata, List<Object[]> states, long readStartedAt) {
+        // the state read during a transaction may not be committed yet
+        if (entityCache == null || !metadata.isCacheable() || unitOfWork != null) {
+            return;
+        }
 
-        if (!foreignKeyAnnotation.nullable()) {
-            nullable = "not null";
+        int primaryKeyIndex = metadata.getPrimaryKey().getIndex();
+        for (Object[] state : states) {
+            long primaryKey = ((Number) state[primaryKeyIndex]).longValue();
+            entityCache.put(metadata.getEntityClass(), primaryKey, state, readStartedAt);
         }
+    }
 
-        if (foreignKeyAnnotation.unique()) {
-            String unique = "unique";
-            return nullable + " " + unique;
+    private Object[] getFromCache(EntityMetadata<?> metadata, long primaryKey) {
+        if (entityCache == null || !metadata.isCacheable()) {
+            return null;
         }
 
-        return nullable;
+        return entityCache.get(metadata.getEntityClass(), primaryKey);
     }
 
-    private Field getPrimaryKeyField(Class<?> entityClass) {
-        return Arrays.stream(entityClass.getDeclaredFields())
-                .filter(field -> field.isAnnotationPresent(Id.class))
-                .collect(Collectors.toList())
-                .get(0);
+    private void evictFromCache(EntityMetadata<?> metadata, long primaryKey) {
+        if (entityCache != null && metadata.isCacheable()) {
+            entityCache.evict(metadata.getEntityClass(), primaryKey);
+
+            UnitOfWork unitOfWork = this.unitOfWork;
+            if (unitOfWork != null) {
+                unitOfWork.written(metadata.getEntityClass(), primaryKey);
+            }
+        }
     }
 
-    private <T> void addForeignKeyConstraints(List<String> columns, List<Field> foreignKeyFields, Class<T> table) {
-        String constraint = "constraint `%s`%n" + " foreign key (`%s`)%n" + " references `%s`(`%s`)";
 
-        for (Field field : foreignKeyFields) {
-            Class<?> fieldClass = field.getType();
+    /**
+     * Returns the constructor whose parameter types are the types of the given columns.
+     * If there is no such constructor, a constructor whose parameters can hold the values
+     * of the columns (for example a long parameter for an int column) is used,
+     * as long as there is only one.
+     */
+    @SuppressWarnings("unchecked")
+    private <R> Constructor<R> getProjectionConstructor(Class<R> resultClass, List<ColumnMetadata> columns) {
+        List<Constructor<?>> compatibleConstructors = new ArrayList<>();
 
-            String referencedColumn = getColumnName(getPrimaryKeyField(fieldClass), Id.class);
-            String referencedTable = getTableName(fieldClass);
-            String columnName = getColumnName(field, ForeignKey.class);
-            String foreignKeyName = String.format("fk_%s_%s",
-                    getTableName(table), referencedTable);
+        for (Constructor<?> constructor : resultClass.getDeclaredConstructors()) {
+            Class<?>[] parameterTypes = constructor.getParameterTypes();
+            if (parameterTypes.length != columns.size()) {
+                continue;
+            }
 
-            columns.add(String.format(constraint, foreignKeyName, columnName, referencedTable, referencedColumn));
+            boolean exact = true;
+            boolean compatible = true;
+            for (int i = 0; i < parameterTypes.length; i++) {
+                Class<?> parameterType = wrap(parameterTypes[i]);
+                Class<?> columnType = wrap(getColumnValueType(columns.get(i)));
+
+                exact &= parameterType == columnType;
+                compatible &= parameterType.isAssignableFrom(columnType)
+                        || Number.class.isAssignableFrom(columnType) && isNumberType(parameterType);
+            }
+
+            if (exact) {
+                constructor.setAccessible(true);
+                return (Constructor<R>) constructor;
+            }
+            if (compatible) {
+                compatibleConstructors.add(constructor);
+            }
+        }
+
+        if (compatibleConstructors.size() == 1) {
+            Constructor<?> constructor = compatibleConstructors.get(0);
+            constructor.setAccessible(true);
+            return (Constructor<R>) constructor;
         }
+
+        String message = String.format(compatibleConstructors.isEmpty()
+                        ? "Class \"%s\" does not have a constructor with parameters matching the selected fields %s."
+                        : "Class \"%s\" has more than one constructor that can take the selected fields %s.",
+                resultClass.getName(), getFieldNames(columns));
+        throw new EntityManagerException(message);
     }
 
-    private String insert(Object entity, Class<?> entityClass, Field primaryKey) {
-        boolean includePrimaryKey = !primaryKey.isAnnotationPresent(GeneratedValue.class);
+    /**
+     * The type of the value of a column: the type of its field,
+     * or the type of the referenced primary key for a foreign key.
+     */
+    private Class<?> getColumnValueType(ColumnMetadata column) {
+        if (column.isForeignKey()) {
+            return EntityMetadataRegistry.get(column.getReferencedClass()).getPrimaryKey().getField().getType();
+        }
+
+        return column.getField().getType();
+    }
 
-        String tableName = getTableName(entityClass);
-        String columnNames = getAllColumnNames(entityClass, includePrimaryKey);
-        String values = getInsertValues(entity, entityClass, includePrimaryKey);
+    private List<String> getFieldNames(List<ColumnMetadata> columns) {
+        List<String> fieldNames = new ArrayList<>();
+        for (ColumnMetadata column : columns) {
+            fieldNames.add(column.getField().getName());
+        }
 
-        return String.format("insert into `%s` (%s)%n" + "values (%s)",
-                tableName, columnNames, values);
+        return fieldNames;
     }
 
-    private <T> String getAllColumnNames(Class<T> table, boolean includePrimaryKey) {
-        String tableName = getTableName(table);
+    private Class<?> wrap(Class<?> type) {
+        return MethodType.methodType(type).wrap().returnType();
+    }
 
-        String query = String.format("show columns from `%s`", tableName);
+    /**
+     * Whether toParameterType() converts numbers to the given (wrapped) type.
+     */
+    private boolean isNumberType(Class<?> type) {
+        return type == Integer.class || type == Long.class || type == Double.class
+                || type == Float.class || type == Number.class;
+    }
 
-        if (!includePrimaryKey) {
-            query += " where not `Key` = 'PRI'";
+    /**
+     * Converts a number read from the database to the number type of a constructor parameter.
+     */
+    private Object toParameterType(Class<?> parameterType, Number value) {
+        if (parameterType == int.class || parameterType == Integer.class) {
+            return value.intValue();
+        } else if (parameterType == long.class || parameterType == Long.class) {
+            return value.longValue();
+        } else if (parameterType == double.class || parameterType == Double.class) {
+            return value.doubleValue();
+        } else if (parameterType == float.class || parameterType == Float.class) {
+            return value.floatValue();
         }
 
-        try {
-            PreparedStatement getColumnNamesQuery = connection.prepareStatement(query);
-            ResultSet resultSet = getColumnNamesQuery.executeQuery();
+        return value;
+    }
 
-            List<String> columnNames = new ArrayList<>();
+    private String getColumnsInitialization(EntityMetadata<?> metadata) {
+        List<String> columns = new ArrayList<>();
 
-            while (resultSet.next()) {
-                String columnName = resultSet.getString("Field");
-                columnName = String.format("`%s`", columnName);
-                columnNames.add(columnName);
+        for (ColumnMetadata column : metadata.getColumns()) {
+            if (column.isForeignKey()) {
+                checkIfClassHasExistingDbTable(EntityMetadataRegistry.get(column.getReferencedClass()));
             }
 
-            return String.join(", ", columnNames);
-        } catch (SQLException e) {
-            throw new EntityManagerException(e.getMessage());
+            String columnInitialization = String.format("`%s` %s %s",
+                    column.getName(), column.getSqlType(), column.getConstraints());
+            columns.add(columnInitialization);
         }
+
+        addForeignKeyConstraints(columns, metadata);
+
+        return String.join(String.format(",%n"), columns);
     }
 
-    private String getInsertValues(Object entity, Class<?> entityClass, boolean includePrimaryKey) {
-        List<Field> fields = Arrays.stream(entityClass.getDeclaredFields())
-                .filter(field -> field.isAnnotationPresent(Id.class)
-                        || field.isAnnotationPresent(Column.class)
-                        || field.isAnnotationPresent(ForeignKey.class))
-                .collect(Collectors.toList());
+    private void addForeignKeyConstraints(List<String> columns, EntityMetadata<?> metadata) {
+        String constraint = "constraint `%s`%n" + " foreign key (`%s`)%n" + " references `%s`(`%s`)";
+
+        for (ColumnMetadata column : metadata.getForeignKeys()) {
+            EntityMetadata<?> referencedMetadata = EntityMetadataRegistry.get(column.getReferencedClass());
+
+            String referencedColumn = referencedMetadata.getPrimaryKey().getName();
+            String referencedTable = referencedMetadata.getTableName();
+            String foreignKeyName = String.format("fk_%s_%s",
+                    metadata.getTableName(), referencedTable);
 
-        if (!includePrimaryKey) {
-            fields = fields.stream()
-                    .filter(field -> !field.isAnnotationPresent(Id.class))
-                    .collect(Collectors.toList());
+            columns.add(String.format(constraint, foreignKeyName, column.getName(), referencedTable, referencedColumn));
         }
+    }
 
-        List<String> values = new ArrayList<>();
+    /**
+     * Returns the parameters of the insert statement of the entity:
+     * the values of all columns, except a generated primary key.
+     */
+    private List<Object> getInsertValues(Object entity, EntityMetadata<?> metadata) {
+        List<Object> values = new ArrayList<>();
 
-        for (Field field : fields) {
-            field.setAccessible(true);
+        for (ColumnMetadata column : metadata.getColumns()) {
+            if (column.isGenerated()) {
+                continue;
+            }
 
-            try {
-                Object fieldValue = field.get(entity);
-                if (field.isAnnotationPresent(ForeignKey.class)) {
-                    Class<?> fieldClass = field.getType();
+            values.add(getColumnValue(entity, column));
+        }
 
-                    checkIfClassIsValidEntity(fieldClass);
-                    checkIfClassHasExistingDbTable(fieldClass);
+        return values;
+    }
 
-                    Field fkFieldPrimaryKey = getPrimaryKeyField(fieldClass);
-                    fkFieldPrimaryKey.setAccessible(true);
+    /**
+     * Returns the parameters of the update statement of the entity that sets the given columns:
+     * the values of these columns, followed by the primary key (and the version).
+     */
+    private List<Object> getUpdateValues(Object entity, EntityMetadata<?> metadata, List<ColumnMetadata> columns) {
+        List<Object> values = new ArrayList<>();
 
-                    fieldValue = fkFieldPrimaryKey.get(fieldValue);
-                }
-                String value = String.format("'%s'", fieldValue);
-                values.add(value);
-            } catch (IllegalAccessException e) {
-                throw new EntityManagerException(e.getMessage());
+        for (ColumnMetadata column : columns) {
+            values.add(getColumnValue(entity, column));
+        }
+
+        values.add(metadata.getPrimaryKey().getValue(entity));
+        if (metadata.getVersion() != null) {
+            values.add(metadata.getVersion().getValue(entity));
+        }
+
+        return values;
+    }
+
+    /**
+     * Returns the updatable columns whose values differ from the snapshot,
+     * or all updatable columns if there is no snapshot.
+     */
+    private List<ColumnMetadata> getChangedColumns(Object entity, EntityMetadata<?> metadata, Object[] snapshot) {
+        if (snapshot == null) {
+            return metadata.getUpdatableColumns();
+        }
+
+        List<ColumnMetadata> changedColumns = new ArrayList<>();
+        for (ColumnMetadata column : metadata.getUpdatableColumns()) {
+            if (!Objects.equals(snapshot[column.getIndex()], getSnapshotValue(entity, column))) {
+                changedColumns.add(column);
+            }
+        }
+
+        return changedColumns;
+    }
+
+    /**
+     * Groups the updated entities by the columns that were changed, so that
+     * every group is written with one batch. Unchanged entities are left out.
+     */
+    private Map<List<ColumnMetadata>, List<Object>> groupByChangedColumns(List<Object> entities, EntityMetadata<?> metadata,
+                                                                       PersistenceContext context) {
+        Map<List<ColumnMetadata>, List<Object>> groups = new LinkedHashMap<>();
+        for (Object entity : entities) {
+            Object[] snapshot = context.getSnapshot(metadata.getEntityClass(), metadata.getPrimaryKey().getLong(entity), entity);
+
+            List<ColumnMetadata> changedColumns = getChangedColumns(entity, metadata, snapshot);
+            if (!changedColumns.isEmpty()) {
+                groups.computeIfAbsent(changedColumns, columns -> new ArrayList<>()).add(entity);
             }
         }
 
-        return String.join(", ", values);
+        return groups;
     }
 
-    private String update(Object entity, Class<?> entityClass, Field primaryKey, Object primaryKeyValue) {
-        String tableName = getTableName(entityClass);
-        String columnsAndNewValues = getUpdateColumnsAndNewValues(entity, entityClass);
+    /**
+     * Returns the current column values of the entity, in the same form as
+     * the values read from the database, indexed by the index of each column.
+     */
+    private Object[] getSnapshot(Object entity, EntityMetadata<?> metadata) {
+        Object[] snapshot = new Object[metadata.getColumns().size()];
+        for (ColumnMetadata column : metadata.getColumns()) {
+            snapshot[column.getIndex()] = getSnapshotValue(entity, column);
+        }
 
-        return String.format("update `%s`%n" + "set %s%n" + "where `%s` = '%s'",
-                tableName, columnsAndNewValues, primaryKey.getName(), primaryKeyValue);
+        return snapshot;
     }
 
-    private String getUpdateColumnsAndNewValues(Object entity, Class<?> entityClass) {
-        List<Field> fields = Arrays.stream(entityClass.getDeclaredFields())
-                .filter(field -> !field.isAnnotationPresent(Id.class)
-                        && (field.isAnnotationPresent(Column.class) ||
-                            field.isAnnotationPresent(ForeignKey.class)))
-                .collect(Collectors.toList());
+    /**
+     * Foreign keys are read from the database as long values,
+     * whatever the type of the referenced primary key is.
+     */
+    private Object getSnapshotValue(Object entity, ColumnMetadata column) {
+        Object value = getColumnValue(entity, column);
 
-        fields.forEach(field -> field.setAccessible(true));
+        return column.isForeignKey() && value instanceof Number number ? number.longValue() : value;
+    }
 
-        List<String> result = new ArrayList<>();
+    /**
+     * Returns the parameters of the versioned delete statement of the entity:
+     * the primary key, followed by the version if the entity has one.
+     */
+    private List<Object> getDeleteValues(Object entity, EntityMetadata<?> metadata) {
+        List<Object> values = new ArrayList<>();
+        values.add(metadata.getPrimaryKey().getValue(entity));
+        if (metadata.getVersion() != null) {
+            values.add(metadata.getVersion().getValue(entity));
+        }
 
-        for (Field field : fields) {
-            try {
-                String columnName;
-                Object newValue = field.get(entity);
-
-                if (field.isAnnotationPresent(Id.class)) {
-                    columnName = getColumnName(field, Id.class);
-                } else if (field.isAnnotationPresent(Column.class)) {
-                    columnName = getColumnName(field, Column.class);
-                } else if (field.isAnnotationPresent(ForeignKey.class)) {
-                    columnName = getColumnName(field, ForeignKey.class);
-                    Field fkFieldPrimaryKey = getPrimaryKeyField(newValue.getClass());
-                    fkFieldPrimaryKey.setAccessible(true);
-
-                    newValue = fkFieldPrimaryKey.get(newValue);
-                } else {
-                    continue;
-                }
+        return values;
+    }
+
+    /**
+     * Throws an OptimisticLockException if an update or delete
+     * of a versioned entity did not affect any row.
+     */
+    private void checkVersionedWrite(EntityMetadata<?> metadata, Object entity, int rowsAffected) {
+        if (rowsAffected == 0) {
+            checkVersionedWrites(metadata, List.of(entity));
+        }
+    }
+
+    /**
+     * Throws an OptimisticLockException for the given entities, whose updates
+     * or deletes in a batch did not affect any row, if there are any.
+     */
+    private void checkVersionedWrites(EntityMetadata<?> metadata, Collection<Object> conflicts) {
+        if (conflicts.isEmpty()) {
+            return;
+        }
 
-                String columnAndValue = String.format("`%s` = '%s'", columnName, newValue);
-                result.add(columnAndValue);
-            } catch (IllegalAccessException e) {
-                throw new IllegalArgumentException(e.getMessage());
+        String message;
+        if (conflicts.size() == 1) {
+            Object entity = conflicts.iterator().next();
+            message = String.format("Entity \"%s\" with id %d was changed or deleted by someone else " +
+                            "after version %s was read.", metadata.getEntityClass().getName(),
+                    metadata.getPrimaryKey().getLong(entity), metadata.getVersion().getValue(entity));
+        } else {
+            List<Long> primaryKeys = new ArrayList<>();
+            for (Object entity : conflicts) {
+                primaryKeys.add(metadata.getPrimaryKey().getLong(entity));
             }
+            Collections.sort(primaryKeys);
+            message = String.format("Entities \"%s\" with ids %s were changed or deleted by someone else " +
+                    "after they were read.", metadata.getEntityClass().getName(), primaryKeys);
+        }
+
+        throw new OptimisticLockException(message);
+    }
+
+    private void checkIfDeleted(EntityMetadata<?> metadata, int rowsAffected) {
+        if (rowsAffected == 0) {
+            throw noSuchEntity(metadata);
         }
+    }
+
+    private EntityManagerException noSuchEntity(EntityMetadata<?> metadata) {
+        String message = String.format("No such entity found in database \"%s\"", metadata.getTableName());
+        return new EntityManagerException(message);
+    }
 
-        return String.join(", ", result);
+    private void incrementVersion(EntityMetadata<?> metadata, Object entity) {
+        ColumnMetadata version = metadata.getVersion();
+        version.setValue(entity, version.toFieldType(version.getLong(entity) + 1));
     }
 
-    private boolean checkIfEntityExistsInDatabase(Object entity, Class<?> entityClass, Object primaryKeyValue) {
-        boolean originalValue = showSql;
-        showSql = false;
-        Object dbObject = find(entityClass, Long.parseLong(String.valueOf(primaryKeyValue)));
-        showSql = originalValue;
+    /**
+     * Returns the value of the column for the given entity, as it is stored
+     * in the database. For foreign keys this is the primary key of
+     * the referenced entity, taken from the entity or the Ref.
+     */
+    private Object getColumnValue(Object entity, ColumnMetadata column) {
+        return column.toColumnValue(column.getValue(entity));
+    }
+
+    /**
+     * Reads the rows of a query with a server-side cursor, fetchBatchSize rows at a time,
+     * and creates the entities of every fetched chunk together, so their foreign keys
+     * are resolved with one "where id in (...)" query per chunk.
+     *
+     * The entities are not kept in the persistence context, so the memory used
+     * does not grow with the number of rows. The statement (and, for a shared
+     * EntityManager, its pooled connection) is kept until the iterator is closed,
+     * and the foreign keys of every chunk are resolved on the same connection.
+     *
+     * The MySQL driver uses a cursor only on connections opened with useCursorFetch
+     * (as the ones of Connector are). On other connections it reads the whole result
+     * when the query is executed; its streaming mode is not used instead, since it
+     * does not allow the queries of the foreign keys on the same connection.
+     */
+    private final class EntityIterator<T> implements Iterator<T> {
+
+        private final EntityMetadata<T> metadata;
+        private final StatementLease lease;
+        private final ResultSet resultSet;
+        private final int[] positions;
+        private Iterator<T> chunk;
+        private boolean exhausted;
+
+        EntityIterator(String query, EntityMetadata<T> metadata) throws SQLException {
+            this.metadata = metadata;
+            this.lease = statementSource.leaseOnce(query);
+
+            try {
+                PreparedStatement statement = lease.getStatement();
+                statement.setFetchSize(fetchBatchSize);
+                this.resultSet = statement.executeQuery();
+                this.positions = getColumnPositions(resultSet, metadata.getColumns());
+
+                printQuery(query, List.of());
+            } catch (SQLException e) {
+                lease.close();
+                throw e;
+            }
 
-        if (dbObject == null) {
-            return false;
+            this.chunk = Collections.emptyIterator();
         }
 
-        for (Field field : entityClass.getDeclaredFields()) {
-            field.setAccessible(true);
+        @Override
+        public boolean hasNext() {
+            while (!chunk.hasNext() && !exhausted) {
+                chunk = fetchChunk().iterator();
+            }
 
-            if (!field.isAnnotationPresent(Id.class) &&
-                    !field.isAnnotationPresent(Column.class) &&
-                    !field.isAnnotationPresent(ForeignKey.class)) {
-                continue;
+            return chunk.hasNext();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
 
+            return chunk.next();
+        }
+
+        private List<T> fetchChunk() {
             try {
-                String entityField = String.valueOf(field.get(entity));
-                String dbObjectField = String.valueOf(field.get(dbObject));
+                List<ColumnMetadata> columns = metadata.getColumns();
+
+                List<Object[]> states = new ArrayList<>();
+                boolean lastChunk = false;
+                while (states.size() < fetchBatchSize) {
+                    if (!resultSet.next()) {
+                        lastChunk = true;
+                        break;
+                    }
+
+                    states.add(readRow(resultSet, metadata, columns, positions));
+                }
+
+                // the foreign keys are resolved on the connection of the cursor, so a shared
+                // EntityManager does not take a second pooled connection while it is held
+                List<T> objects;
+                statementSource.pin(lease);
+                try {
+                    objects = materialize(metadata, states, new PersistenceContext());
+                } finally {
+                    statementSource.unpin();
+                }
 
-                if (!entityField.equals(dbObjectField)) {
-                    return false;
+                if (lastChunk) {
+                    close();
                 }
-            } catch (IllegalAccessException e) {
+
+                return objects;
+            } catch (SQLException e) {
+                close();
                 throw new EntityManagerException(e.getMessage());
+            } catch (RuntimeException e) {
+                close();
+                throw e;
             }
         }
 
-        return true;
+        void close() {
+            exhausted = true;
+
+            try {
+                try {
+                    resultSet.close();
+                } finally {
+                    lease.close();
+                }
+            } catch (SQLException e) {
+                throw new EntityManagerException(e.getMessage());
+            }
+        }
     }
 }
@@ -0,0 +1,521 @@
+package ORM;
+
+import ORM.Annotations.*;
+import ORM.Exceptions.AnnotationException;
+import ORM.Exceptions.EntityManagerException;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable, precomputed mapping between an entity class and its database table.
+ *
+ * An instance is built once per class by the EntityMetadataRegistry, which also
+ * validates that the class is annotated properly. After that the EntityManager
+ * works only with the metadata, without scanning the class fields again.
+ *
+ * @see EntityMetadataRegistry
+ * @see ColumnMetadata
+ */
+final class EntityMetadata<T> {
+
+    private static final int MAX_CACHED_UPDATES = 64;
+
+    private final Class<T> entityClass;
+    private final String tableName;
+    private final Constructor<T> constructor;
+    private final ColumnMetadata primaryKey;
+    private final ColumnMetadata version;
+    private final List<ColumnMetadata> columns;
+    private final List<ColumnMetadata> foreignKeys;
+    private final List<ColumnMetadata> updatableColumns;
+    private final Map<String, ColumnMetadata> columnsByFieldName;
+    private final String selectColumnNames;
+    private final String selectSql;
+    private final String selectByPrimaryKeySql;
+    private final String selectPageSql;
+    private final String insertSql;
+    private final String updateSql;
+    private final String deleteSql;
+    private final String deleteVersionedSql;
+    private final String upsertSql;
+    private final Map<List<ColumnMetadata>, String> partialUpdateSql;
+    private final boolean cacheable;
+
+    private EntityMetadata(Class<T> entityClass, String tableName, Constructor<T> constructor,
+                           ColumnMetadata primaryKey, ColumnMetadata version, List<ColumnMetadata> columns,
+                           boolean hasUniqueColumns) {
+        this.entityClass = entityClass;
+        this.tableName = tableName;
+        this.cacheable = entityClass.isAnnotationPresent(Cacheable.class);
+        this.constructor = constructor;
+        this.primaryKey = primaryKey;
+        this.version = version;
+        this.columns = Collections.unmodifiableList(columns);
+
+        List<ColumnMetadata> foreignKeys = new ArrayList<>();
+        List<ColumnMetadata> updatableColumns = new ArrayList<>();
+        for (ColumnMetadata column : columns) {
+            if (column.isForeignKey()) {
+                foreignKeys.add(column);
+            }
+            if (!column.isPrimaryKey() && !column.isVersion()) {
+                updatableColumns.add(column);
+            }
+        }
+        this.foreignKeys = Collections.unmodifiableList(foreignKeys);
+        this.updatableColumns = Collections.unmodifiableList(updatableColumns);
+
+        Map<String, ColumnMetadata> columnsByFieldName = new HashMap<>();
+        for (ColumnMetadata column : columns) {
+            columnsByFieldName.put(column.getField().getName(), column);
+        }
+        this.columnsByFieldName = Collections.unmodifiableMap(columnsByFieldName);
+
+        List<String> selectColumnNames = new ArrayList<>();
+        List<String> insertColumnNames = new ArrayList<>();
+        List<String> insertPlaceholders = new ArrayList<>();
+        List<String> upsertColumns = new ArrayList<>();
+        for (ColumnMetadata column : columns) {
+            String columnName = String.format("`%s`", column.getName());
+
+            selectColumnNames.add(columnName);
+            if (!column.isGenerated()) {
+                insertColumnNames.add(columnName);
+                insertPlaceholders.add("?");
+            }
+            if (!column.isPrimaryKey() && !column.isVersion()) {
+                upsertColumns.add(String.format("%s = values(%s)", columnName, columnName));
+            }
+        }
+        this.selectColumnNames = String.join(", ", selectColumnNames);
+
+        this.selectSql = String.format("select %s from `%s`", this.selectColumnNames, tableName);
+        this.selectByPrimaryKeySql = String.format("%s where `%s` = ?", selectSql, primaryKey.getName());
+        this.selectPageSql = String.format("%s where `%s` > ? order by `%s` limit ?",
+                selectSql, primaryKey.getName(), primaryKey.getName());
+        this.insertSql = String.format("insert into `%s` (%s)%n" + "values (%s)",
+                tableName, String.join(", ", insertColumnNames), String.join(", ", insertPlaceholders));
+        this.updateSql = createUpdateSql(this.updatableColumns);
+        this.partialUpdateSql = new ConcurrentHashMap<>();
+        this.deleteSql = String.format("delete from `%s` where `%s` = ?", tableName, primaryKey.getName());
+        this.deleteVersionedSql = String.format("delete from `%s` where %s", tableName, getIdentityCondition());
+
+        // "on duplicate key update" is triggered by any unique key, so it is used only
+        // when the primary key is the only one and is given by the entity itself,
+        // and never for a versioned entity, since it would skip the version check
+        if (primaryKey.isGenerated() || hasUniqueColumns || version != null) {
+            this.upsertSql = null;
+        } else if (upsertColumns.isEmpty()) {
+            this.upsertSql = insertSql.replaceFirst("insert", "insert ignore");
+        } else {
+            this.upsertSql = String.format("%s%n" + "on duplicate key update %s", insertSql, String.join(", ", upsertColumns));
+        }
+    }
+
+    Class<T> getEntityClass() {
+        return entityClass;
+    }
+
+    String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * "`id` = ?", followed by "and `version` = ?" for a versioned entity.
+     */
+    private String getIdentityCondition() {
+        String condition = String.format("`%s` = ?", primaryKey.getName());
+        if (version != null) {
+            condition += String.format(" and `%s` = ?", version.getName());
+        }
+
+        return condition;
+    }
+
+    /**
+     * "update table set ... = ? where ...", setting the given columns,
+     * and incrementing the version of a versioned entity.
+     */
+    private String createUpdateSql(List<ColumnMetadata> updatedColumns) {
+        List<String> assignments = new ArrayList<>();
+        for (ColumnMetadata column : updatedColumns) {
+            assignments.add(String.format("`%s` = ?", column.getName()));
+        }
+        if (version != null) {
+            assignments.add(String.format("`%s` = `%s` + 1", version.getName(), version.getName()));
+        }
+
+        return String.format("update `%s`%n" + "set %s%n" + "where %s",
+                tableName, String.join(", ", assignments), getIdentityCondition());
+    }
+
+    /**
+     * The version column of the entity, annotated with Version;
+     * Null if the entity does not have one.
+     */
+    ColumnMetadata getVersion() {
+        return version;
+    }
+
+    /**
+     * The primary key column of the entity.
+     */
+    ColumnMetadata getPrimaryKey() {
+        return primaryKey;
+    }
+
+    /**
+     * All mapped columns (including the primary key),
+     * in the order their fields are declared in the class.
+     */
+    List<ColumnMetadata> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Only the columns mapped with the ForeignKey annotation.
+     */
+    List<ColumnMetadata> getForeignKeys() {
+        return foreignKeys;
+    }
+
+    /**
+     * The columns set by an update statement: all columns
+     * except the primary key and the version.
+     */
+    List<ColumnMetadata> getUpdatableColumns() {
+        return updatableColumns;
+    }
+
+    /**
+     * The names of all mapped columns, quoted and separated
+     * by commas, ready to be used in a SELECT query.
+     */
+    String getSelectColumnNames() {
+        return selectColumnNames;
+    }
+
+    /**
+     * Returns the column mapped to the field with the given name.
+     *
+     * @throws EntityManagerException If the entity does not have such a mapped field
+     */
+    ColumnMetadata getColumn(String fieldName) {
+        ColumnMetadata column = columnsByFieldName.get(fieldName);
+        if (column == null) {
+            String message = String.format("Entity \"%s\" does not have a mapped field \"%s\".",
+                    entityClass.getName(), fieldName);
+            throw new EntityManagerException(message);
+        }
+
+        return column;
+    }
+
+    /**
+     * "select ... from table", selecting all mapped columns.
+     */
+    String getSelectSql() {
+        return selectSql;
+    }
+
+    /**
+     * "select ... from table where id = ?"
+     */
+    String getSelectByPrimaryKeySql() {
+        return selectByPrimaryKeySql;
+    }
+
+    /**
+     * "select ... from table where id > ? order by id limit ?"
+     */
+    String getSelectPageSql() {
+        return selectPageSql;
+    }
+
+    /**
+     * "select ... from table where id in (?, ...)" with the given number of parameters.
+     */
+    String getSelectByPrimaryKeysSql(int count) {
+        return String.format("%s where `%s` in (%s)",
+                selectSql, primaryKey.getName(), String.join(", ", Collections.nCopies(count, "?")));
+    }
+
+    /**
+     * "insert into table (...) values (?, ...)", with a parameter
+     * for every column except a generated primary key.
+     */
+    String getInsertSql() {
+        return insertSql;
+    }
+
+    /**
+     * "update table set ... = ? where id = ?", with a parameter for
+     * every column except the primary key, followed by the primary key.
+     * For a versioned entity the version is incremented instead of set,
+     * and the current version is the last parameter ("and version = ?").
+     */
+    String getUpdateSql() {
+        return updateSql;
+    }
+
+    /**
+     * Same as getUpdateSql(), setting only the given updatable columns,
+     * in the order of getUpdatableColumns().
+     */
+    String getUpdateSql(List<ColumnMetadata> updatedColumns) {
+        if (updatedColumns.size() == updatableColumns.size()) {
+            return updateSql;
+        }
+
+        String sql = partialUpdateSql.get(updatedColumns);
+        if (sql == null) {
+            sql = createUpdateSql(updatedColumns);
+            if (partialUpdateSql.size() < MAX_CACHED_UPDATES) {
+                partialUpdateSql.putIfAbsent(List.copyOf(updatedColumns), sql);
+            }
+        }
+
+        return sql;
+    }
+
+    /**
+     * "delete from table where id = ?"
+     */
+    String getDeleteSql() {
+        return deleteSql;
+    }
+
+    /**
+     * "delete from table where id = ? and version = ?" for a versioned entity,
+     * the same as getDeleteSql() otherwise.
+     */
+    String getDeleteVersionedSql() {
+        return deleteVersionedSql;
+    }
+
+    /**
+     * "insert into table (...) values (?, ...) on duplicate key update ...",
+     * with the same parameters as the insert statement, which inserts
+     * the entity or updates it if it already exists.
+     * Null if the primary key is generated, or if the table has other unique columns.
+     */
+    String getUpsertSql() {
+        return upsertSql;
+    }
+
+    /**
+     * Whether the entity is annotated with Cacheable.
+     */
+    boolean isCacheable() {
+        return cacheable;
+    }
+
+    T newInstance() {
+        try {
+            return constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new EntityManagerException(e.getMessage());
+        }
+    }
+
+    /**
+     * Builds the metadata of the given class, validating its annotations.
+     *
+     * @throws AnnotationException If the class is not annotated properly
+     * @throws EntityManagerException If the primary key is not int or long,
+     * or if the class does not have an empty constructor
+     */
+    static <T> EntityMetadata<T> create(Class<T> clazz) {
+        if (!clazz.isAnnotationPresent(Entity.class)) {
+            String exceptionMessage = String.format
+                    ("Entity \"%s\" is not annotated as a database entity.", clazz.getName());
+            throw new AnnotationException(exceptionMessage);
+        }
+
+        if (!clazz.isAnnotationPresent(Table.class)) {
+            String exceptionMessage = String.format
+                    ("Entity \"%s\" is not annotated as a database table.", clazz.getName());
+            throw new AnnotationException(exceptionMessage);
+        }
+
+        Field primaryKeyField = getPrimaryKeyField(clazz);
+
+        List<ColumnMetadata> columns = new ArrayList<>();
+        ColumnMetadata primaryKey = null;
+        ColumnMetadata version = null;
+        boolean hasUniqueColumns = false;
+
+        for (Field field : clazz.getDeclaredFields()) {
+            ColumnMetadata column;
+
+            if (field.equals(primaryKeyField)) {
+                boolean generated = field.isAnnotationPresent(GeneratedValue.class);
+                String constraints = generated ? "primary key auto_increment" : "primary key";
+
+                column = new ColumnMetadata(field, columns.size(), getColumnName(field, field.getAnnotation(Id.class).name()),
+                        getColumnSqlType(field, null), constraints, true, generated, false, null, null);
+                primaryKey = column;
+            } else if (field.isAnnotationPresent(Version.class)) {
+                checkIfVersionFieldIsValid(field, version);
+
+                column = new ColumnMetadata(field, columns.size(), getColumnName(field, field.getAnnotation(Version.class).name()),
+                        getColumnSqlType(field, null), "not null", false, false, true, null, null);
+                version = column;
+            } else if (field.isAnnotationPresent(Column.class)) {
+                Column columnAnnotation = field.getAnnotation(Column.class);
+                hasUniqueColumns |= columnAnnotation.unique();
+
+                column = new ColumnMetadata(field, columns.size(), getColumnName(field, columnAnnotation.name()),
+                        getColumnSqlType(field, columnAnnotation), ColumnMetadata.getConstraints(columnAnnotation),
+                        false, false, false, null, null);
+            } else if (field.isAnnotationPresent(ForeignKey.class)) {
+                ForeignKey foreignKey = field.getAnnotation(ForeignKey.class);
+                Class<?> referencedClass = getReferencedClass(field, foreignKey);
+                hasUniqueColumns |= foreignKey.unique();
+
+                column = new ColumnMetadata(field, columns.size(), getColumnName(field, foreignKey.name()),
+                        getColumnSqlType(getPrimaryKeyField(referencedClass), null),
+                        ColumnMetadata.getConstraints(foreignKey), false, false, false, referencedClass, foreignKey.fetch());
+            } else {
+                continue;
+            }
+
+            columns.add(column);
+        }
+
+        Constructor<T> constructor;
+        try {
+            constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            String message = String.format("Entity \"%s\" does not have an empty constructor.", clazz.getName());
+            throw new EntityManagerException(message);
+        }
+
+        return new EntityMetadata<>(clazz, getTableName(clazz), constructor, primaryKey, version, columns, hasUniqueColumns);
+    }
+
+    private static void checkIfVersionFieldIsValid(Field field, ColumnMetadata existingVersion) {
+        String className = field.getDeclaringClass().getName();
+
+        if (existingVersion != null) {
+            String message = String.format("Entity \"%s\" has more than one version field.", className);
+            throw new AnnotationException(message);
+        }
+
+        if (field.isAnnotationPresent(Column.class) || field.isAnnotationPresent(ForeignKey.class)) {
+            String message = String.format("Version field \"%s\" of entity \"%s\" can not be a column or a foreign key too.",
+                    field.getName(), className);
+            throw new AnnotationException(message);
+        }
+
+        Class<?> type = field.getType();
+        if (type != int.class && type != Integer.class && type != long.class && type != Long.class) {
+            String message = String.format("Version field \"%s\" of entity \"%s\" should be of type int or long.",
+                    field.getName(), className);
+            throw new AnnotationException(message);
+        }
+    }
+
+    private static Field getPrimaryKeyField(Class<?> clazz) {
+        List<Field> primaryKeyList = new ArrayList<>();
+        for (Field field : clazz.getDeclaredFields()) {
+            if (field.isAnnotationPresent(Id.class)) {
+                primaryKeyList.add(field);
+            }
+        }
+
+        if (primaryKeyList.isEmpty()) {
+            String message = String.format("Entity \"%s\" does not have a specified primary key.", clazz.getName());
+            throw new AnnotationException(message);
+        }
+
+        if (primaryKeyList.size() > 1) {
+            String message = String.format("Entity \"%s\" has more than one primary key.", clazz.getName());
+            throw new AnnotationException(message);
+        }
+
+        Field primaryKey = primaryKeyList.get(0);
+        Class<?> primaryKeyType = primaryKey.getType();
+        if (primaryKeyType != int.class && primaryKeyType != Integer.class
+                && primaryKeyType != long.class && primaryKeyType != Long.class) {
+            String message = String.format("Entity \"%s\" has a primary key with type other that int or long.", clazz.getName());
+            throw new EntityManagerException(message);
+        }
+
+        return primaryKey;
+    }
+
+    /**
+     * Returns the entity class referenced by a foreign key field,
+     * which is either the type of the field, or T when the field is of type Ref&lt;T&gt;.
+     */
+    private static Class<?> getReferencedClass(Field field, ForeignKey foreignKey) {
+        if (field.getType() != Ref.class) {
+            if (foreignKey.fetch() == FetchType.LAZY) {
+                String message = String.format("Foreign key \"%s\" of entity \"%s\" can be fetched lazily only if it is of type Ref.",
+                        field.getName(), field.getDeclaringClass().getName());
+                throw new AnnotationException(message);
+            }
+
+            return field.getType();
+        }
+
+        if (field.getGenericType() instanceof ParameterizedType parameterizedType
+                && parameterizedType.getActualTypeArguments()[0] instanceof Class<?> referencedClass) {
+            return referencedClass;
+        }
+
+        String message = String.format("Foreign key \"%s\" of entity \"%s\" must specify the type of the referenced entity.",
+                field.getName(), field.getDeclaringClass().getName());
+        throw new AnnotationException(message);
+    }
+
+    private static String getTableName(Class<?> table) {
+        String tableName = table.getAnnotation(Table.class).name();
+
+        return tableName.trim().isEmpty() ? table.getSimpleName() : tableName;
+    }
+
+    private static String getColumnName(Field field, String columnName) {
+        return columnName.trim().isEmpty() ? field.getName() : columnName;
+    }
+
+    private static String getColumnSqlType(Field field, Column columnAnnotation) {
+        Class<?> fieldType = field.getType();
+        String sqlType = "";
+
+        if (fieldType == String.class) {
+            int length = columnAnnotation == null ? 255 : columnAnnotation.length();
+            sqlType = String.format("varchar(%d)", length);
+        } else if (fieldType == char.class || fieldType == Character.class) {
+            sqlType = "char(1)";
+        } else if (fieldType == int.class || fieldType == Integer.class) {
+            sqlType = "int";
+        } else if (fieldType == long.class || fieldType == Long.class) {
+            sqlType = "bigint";
+        } else if (fieldType == double.class || fieldType == Double.class) {
+            sqlType = "double";
+        } else if (fieldType == float.class || fieldType == Float.class) {
+            sqlType = "float";
+        } else if (fieldType == boolean.class || fieldType == Boolean.class) {
+            sqlType = "bit(1)";
+        } else if (fieldType == LocalDate.class) {
+            sqlType = "date";
+        } else if (fieldType == LocalDateTime.class) {
+            sqlType = "datetime";
+        }
+
+        return sqlType;
+    }
+}
@@ -0,0 +1,41 @@
+package ORM;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the EntityMetadata of every entity class used by the EntityManager,
+ * so the reflection needed to read its annotations is done only once per class.
+ *
+ * The registry is shared by all EntityManager instances and is safe
+ * to use from multiple threads.
+ *
+ * @see EntityMetadata
+ */
+final class EntityMetadataRegistry {
+
+    private static final Map<Class<?>, EntityMetadata<?>> METADATA = new ConcurrentHashMap<>();
+
+    private EntityMetadataRegistry() {
+    }
+
+    /**
+     * Returns the metadata of the given class, building and caching it on first use.
+     *
+     * @throws ORM.Exceptions.AnnotationException If the class is not a properly annotated entity
+     */
+    @SuppressWarnings("unchecked")
+    static <T> EntityMetadata<T> get(Class<T> entityClass) {
+        EntityMetadata<T> metadata = (EntityMetadata<T>) METADATA.get(entityClass);
+
+        if (metadata == null) {
+            metadata = EntityMetadata.create(entityClass);
+            EntityMetadata<T> existing = (EntityMetadata<T>) METADATA.putIfAbsent(entityClass, metadata);
+            if (existing != null) {
+                metadata = existing;
+            }
+        }
+
+        return metadata;
+    }
+}
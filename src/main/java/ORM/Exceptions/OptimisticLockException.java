@@ -0,0 +1,11 @@
+package ORM.Exceptions;
+
+/**
+ * Thrown when an entity with a version could not be updated or deleted,
+ * because it was changed or deleted by someone else since it was read.
+ */
+public class OptimisticLockException extends EntityManagerException {
+    public OptimisticLockException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,98 @@
+package ORM;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the values of entity fields to statement parameters,
+ * using the typed setter of PreparedStatement for every supported Java type,
+ * and reads them back with the typed getters of ResultSet.
+ */
+final class JdbcValues {
+
+    private static final ColumnDecoder OBJECT_DECODER = ResultSet::getObject;
+    private static final Map<Class<?>, ColumnDecoder> DECODERS = new HashMap<>();
+
+    static {
+        DECODERS.put(String.class, ResultSet::getString);
+        DECODERS.put(int.class, (resultSet, position) -> {
+            int value = resultSet.getInt(position);
+            return resultSet.wasNull() ? null : value;
+        });
+        DECODERS.put(long.class, (resultSet, position) -> {
+            long value = resultSet.getLong(position);
+            return resultSet.wasNull() ? null : value;
+        });
+        DECODERS.put(double.class, (resultSet, position) -> {
+            double value = resultSet.getDouble(position);
+            return resultSet.wasNull() ? null : value;
+        });
+        DECODERS.put(float.class, (resultSet, position) -> {
+            float value = resultSet.getFloat(position);
+            return resultSet.wasNull() ? null : value;
+        });
+        DECODERS.put(boolean.class, (resultSet, position) -> {
+            boolean value = resultSet.getBoolean(position);
+            return resultSet.wasNull() ? null : value;
+        });
+        DECODERS.put(char.class, (resultSet, position) -> {
+            String value = resultSet.getString(position);
+            return value == null || value.isEmpty() ? null : value.charAt(0);
+        });
+        DECODERS.put(LocalDate.class, (resultSet, position) -> resultSet.getObject(position, LocalDate.class));
+        DECODERS.put(LocalDateTime.class, (resultSet, position) -> resultSet.getObject(position, LocalDateTime.class));
+
+        DECODERS.put(Integer.class, DECODERS.get(int.class));
+        DECODERS.put(Long.class, DECODERS.get(long.class));
+        DECODERS.put(Double.class, DECODERS.get(double.class));
+        DECODERS.put(Float.class, DECODERS.get(float.class));
+        DECODERS.put(Boolean.class, DECODERS.get(boolean.class));
+        DECODERS.put(Character.class, DECODERS.get(char.class));
+    }
+
+    private JdbcValues() {
+    }
+
+    /**
+     * Returns the decoder of the columns mapped to fields of the given type.
+     * Types without a typed getter are read with getObject().
+     */
+    static ColumnDecoder decoderFor(Class<?> type) {
+        return DECODERS.getOrDefault(type, OBJECT_DECODER);
+    }
+
+    static void bind(PreparedStatement statement, List<Object> parameters) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            bind(statement, i + 1, parameters.get(i));
+        }
+    }
+
+    static void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.NULL);
+        } else if (value instanceof String stringValue) {
+            statement.setString(index, stringValue);
+        } else if (value instanceof Integer intValue) {
+            statement.setInt(index, intValue);
+        } else if (value instanceof Long longValue) {
+            statement.setLong(index, longValue);
+        } else if (value instanceof Double doubleValue) {
+            statement.setDouble(index, doubleValue);
+        } else if (value instanceof Float floatValue) {
+            statement.setFloat(index, floatValue);
+        } else if (value instanceof Boolean booleanValue) {
+            statement.setBoolean(index, booleanValue);
+        } else if (value instanceof Character charValue) {
+            statement.setString(index, String.valueOf(charValue));
+        } else {
+            statement.setObject(index, value);
+        }
+    }
+}
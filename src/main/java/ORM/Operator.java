@@ -0,0 +1,35 @@
+package ORM;
+
+/**
+ * The comparison operators of a Query condition.
+ *
+ * @see Query#where(String, Operator, Object)
+ */
+public enum Operator {
+    EQ("="),
+    NE("<>"),
+    GT(">"),
+    GE(">="),
+    LT("<"),
+    LE("<="),
+    LIKE("like"),
+    IS_NULL("is null"),
+    IS_NOT_NULL("is not null");
+
+    private final String sql;
+
+    Operator(String sql) {
+        this.sql = sql;
+    }
+
+    String getSql() {
+        return sql;
+    }
+
+    /**
+     * Whether the operator is used without a value.
+     */
+    boolean isUnary() {
+        return this == IS_NULL || this == IS_NOT_NULL;
+    }
+}
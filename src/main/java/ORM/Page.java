@@ -0,0 +1,88 @@
+package ORM;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A page of entities returned by EntityManager.findPage(),
+ * ordered by their primary key.
+ *
+ * The next page starts after the primary key of the last entity of this page,
+ * so reading any page takes the same time, no matter how far into the table it is.
+ *
+ * @see EntityManager#findPage(Class, long, int)
+ */
+public final class Page<T> implements Iterable<T> {
+
+    private final Class<T> entityClass;
+    private final List<T> content;
+    private final int limit;
+    private final boolean hasNextPage;
+    private final EntityManager entityManager;
+
+    Page(Class<T> entityClass, List<T> content, int limit, boolean hasNextPage, EntityManager entityManager) {
+        this.entityClass = entityClass;
+        this.content = List.copyOf(content);
+        this.limit = limit;
+        this.hasNextPage = hasNextPage;
+        this.entityManager = entityManager;
+    }
+
+    /**
+     * @return The entities of the page, at most limit of them
+     */
+    public List<T> getContent() {
+        return content;
+    }
+
+    /**
+     * @return The maximum number of entities in a page
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the primary key of the last entity of the page, which is
+     * the afterPrimaryKey of the next page. Used to continue reading later,
+     * for example from the next request of a UI.
+     *
+     * @return The last primary key of the page
+     * @throws NoSuchElementException If the page is empty
+     */
+    public long getLastPrimaryKey() {
+        if (content.isEmpty()) {
+            throw new NoSuchElementException("The page is empty.");
+        }
+
+        T last = content.get(content.size() - 1);
+        return EntityMetadataRegistry.get(entityClass).getPrimaryKey().getLong(last);
+    }
+
+    /**
+     * @return True if there are more entities after this page
+     */
+    public boolean hasNextPage() {
+        return hasNextPage;
+    }
+
+    /**
+     * Retrieves the next page, with the same limit.
+     *
+     * @return The next page
+     * @throws NoSuchElementException If this is the last page
+     */
+    public Page<T> nextPage() {
+        if (!hasNextPage) {
+            throw new NoSuchElementException("This is the last page.");
+        }
+
+        return entityManager.findPage(entityClass, getLastPrimaryKey(), limit);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return content.iterator();
+    }
+}
@@ -0,0 +1,70 @@
+package ORM;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The first-level cache of an EntityManager.
+ *
+ * Keeps every entity that was retrieved or saved by the EntityManager,
+ * keyed by its class and primary key, so that the same database row
+ * is always represented by the same instance and is not retrieved twice.
+ *
+ * Together with every entity it keeps a snapshot of its column values,
+ * as they were when it was last read from or written to the database,
+ * so that an update writes only the columns that were changed since then.
+ *
+ * It is safe to use from multiple threads.
+ */
+final class PersistenceContext {
+
+    private final Map<EntityKey, ManagedEntity> entities = new ConcurrentHashMap<>();
+
+    <T> T get(Class<T> entityClass, long primaryKey) {
+        ManagedEntity managedEntity = entities.get(new EntityKey(entityClass, primaryKey));
+        return managedEntity == null ? null : entityClass.cast(managedEntity.entity());
+    }
+
+    boolean contains(Class<?> entityClass, long primaryKey) {
+        return entities.containsKey(new EntityKey(entityClass, primaryKey));
+    }
+
+    /**
+     * Returns the snapshot of the given instance; Null if the instance
+     * is not the one kept for its class and primary key.
+     */
+    Object[] getSnapshot(Class<?> entityClass, long primaryKey, Object entity) {
+        ManagedEntity managedEntity = entities.get(new EntityKey(entityClass, primaryKey));
+        return managedEntity == null || managedEntity.entity() != entity ? null : managedEntity.snapshot();
+    }
+
+    /**
+     * Keeps the entity with the snapshot of its column values, indexed by the index of each column.
+     */
+    void put(Class<?> entityClass, long primaryKey, Object entity, Object[] snapshot) {
+        entities.put(new EntityKey(entityClass, primaryKey), new ManagedEntity(entity, snapshot));
+    }
+
+    void remove(Class<?> entityClass, long primaryKey) {
+        entities.remove(new EntityKey(entityClass, primaryKey));
+    }
+
+    /**
+     * Removes the given instance only, leaving any other
+     * instance with the same class and primary key.
+     */
+    void remove(Class<?> entityClass, long primaryKey, Object entity) {
+        entities.computeIfPresent(new EntityKey(entityClass, primaryKey),
+                (key, managedEntity) -> managedEntity.entity() == entity ? null : managedEntity);
+    }
+
+    void clear() {
+        entities.clear();
+    }
+
+    private record EntityKey(Class<?> entityClass, long primaryKey) {
+    }
+
+    private record ManagedEntity(Object entity, Object[] snapshot) {
+    }
+}
@@ -0,0 +1,108 @@
+package ORM;
+
+import java.time.Duration;
+
+/**
+ * The settings of a ConnectionPool.
+ *
+ * @see ConnectionPool
+ */
+public class PoolSettings {
+
+    private int minSize = 2;
+    private int maxSize = 10;
+    private Duration acquireTimeout = Duration.ofSeconds(30);
+    private Duration idleTimeout = Duration.ofMinutes(10);
+    private String validationQuery;
+    private Duration validationInterval = Duration.ofSeconds(5);
+    private Duration leakDetectionThreshold = Duration.ZERO;
+
+    /**
+     * The number of connections that are kept open even when they are idle.
+     * 2 by default.
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * The maximum number of open connections. 10 by default.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * For how long getConnection() waits for a free connection
+     * when all of them are in use. 30 seconds by default.
+     */
+    public Duration getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    public void setAcquireTimeout(Duration acquireTimeout) {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    /**
+     * For how long a connection can stay unused before it is closed,
+     * as long as there are more than minSize connections. 10 minutes by default.
+     */
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * (Optional) A query (for example "select 1") used to check that an idle
+     * connection still works before it is given out. If not set, the
+     * isValid() method of the connection is used instead.
+     *
+     * @see #getValidationInterval()
+     */
+    public String getValidationQuery() {
+        return validationQuery;
+    }
+
+    public void setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * A connection that was given back to the pool more recently than this
+     * is given out again without being validated, so that a busy pool does not
+     * query the database twice for every statement. 5 seconds by default;
+     * zero validates every connection before it is given out.
+     */
+    public Duration getValidationInterval() {
+        return validationInterval;
+    }
+
+    public void setValidationInterval(Duration validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    /**
+     * If a connection is not given back to the pool for longer than this,
+     * a warning with the stack trace of the code that took it is printed.
+     * Zero (disabled) by default.
+     */
+    public Duration getLeakDetectionThreshold() {
+        return leakDetectionThreshold;
+    }
+
+    public void setLeakDetectionThreshold(Duration leakDetectionThreshold) {
+        this.leakDetectionThreshold = leakDetectionThreshold;
+    }
+}
@@ -0,0 +1,291 @@
+package ORM;
+
+import ORM.Exceptions.EntityManagerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A query on the table of an entity, built by the names of the fields of the entity.
+ * Created with EntityManager.from(), for example:
+ *
+ * em.from(Course.class).where("price", Operator.GT, 100).orderBy("name").limit(10).getResultList()
+ *
+ * The conditions are combined with "and", and their values are sent as parameters.
+ * The SQL is generated once for every shape of query (the conditions and orderings,
+ * without their values) and reused afterwards, together with its prepared statement.
+ *
+ * A Query is not thread-safe, and should not be changed after it is executed.
+ *
+ * @see EntityManager#from(Class)
+ * @see Operator
+ */
+public final class Query<T> {
+
+    private static final int MAX_CACHED_SHAPES = 256;
+    private static final Map<Shape, String> SQL_CACHE = new ConcurrentHashMap<>();
+
+    private final EntityMetadata<T> metadata;
+    private final EntityManagerImpl entityManager;
+    private final List<ColumnMetadata> selection;
+    private final List<Condition> conditions;
+    private final List<Ordering> orderings;
+    private final List<Object> parameters;
+    private int limit;
+
+    Query(EntityMetadata<T> metadata, EntityManagerImpl entityManager) {
+        this.metadata = metadata;
+        this.entityManager = entityManager;
+        this.selection = new ArrayList<>();
+        this.conditions = new ArrayList<>();
+        this.orderings = new ArrayList<>();
+        this.parameters = new ArrayList<>();
+    }
+
+    /**
+     * Selects only the given fields, instead of all of them, to be read
+     * with getResultList(Class) as instances of another class (for example a record).
+     * getResultList() and getFirstResult() can not be used after select(),
+     * since an entity with only some fields set could overwrite its
+     * other columns if it was persisted.
+     *
+     * @param fields The names of the fields of the entity
+     * @return This query
+     */
+    public Query<T> select(String... fields) {
+        for (String field : fields) {
+            selection.add(metadata.getColumn(field));
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds a condition on a field. A null value with EQ or NE
+     * is the same as IS_NULL or IS_NOT_NULL.
+     * A foreign key can be compared with an entity, a Ref or a primary key.
+     *
+     * @param field The name of the field of the entity
+     * @param operator The comparison operator
+     * @param value The value the field is compared with
+     * @return This query
+     */
+    public Query<T> where(String field, Operator operator, Object value) {
+        ColumnMetadata column = metadata.getColumn(field);
+
+        if (value == null && (operator == Operator.EQ || operator == Operator.NE)) {
+            return where(field, operator == Operator.EQ ? Operator.IS_NULL : Operator.IS_NOT_NULL);
+        }
+
+        if (operator.isUnary() || value == null) {
+            String message = String.format("Operator %s can not be used with the value %s.", operator, value);
+            throw new EntityManagerException(message);
+        }
+
+        conditions.add(new Condition(column, operator));
+        parameters.add(column.toColumnValue(value));
+
+        return this;
+    }
+
+    /**
+     * Adds a condition without a value, IS_NULL or IS_NOT_NULL.
+     *
+     * @param field The name of the field of the entity
+     * @param operator IS_NULL or IS_NOT_NULL
+     * @return This query
+     */
+    public Query<T> where(String field, Operator operator) {
+        ColumnMetadata column = metadata.getColumn(field);
+
+        if (!operator.isUnary()) {
+            String message = String.format("Operator %s needs a value.", operator);
+            throw new EntityManagerException(message);
+        }
+
+        conditions.add(new Condition(column, operator));
+
+        return this;
+    }
+
+    /**
+     * Orders the results by a field, in ascending order.
+     *
+     * @param field The name of the field of the entity
+     * @return This query
+     */
+    public Query<T> orderBy(String field) {
+        return orderBy(field, true);
+    }
+
+    /**
+     * Orders the results by a field.
+     *
+     * @param field The name of the field of the entity
+     * @param ascending True for ascending, false for descending order
+     * @return This query
+     */
+    public Query<T> orderBy(String field, boolean ascending) {
+        orderings.add(new Ordering(metadata.getColumn(field), ascending));
+
+        return this;
+    }
+
+    /**
+     * Limits the number of results.
+     *
+     * @param limit The maximum number of results
+     * @return This query
+     */
+    public Query<T> limit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("The limit must be a positive number.");
+        }
+
+        this.limit = limit;
+
+        return this;
+    }
+
+    /**
+     * Executes the query.
+     *
+     * @return A list of the matching entities, or an empty list
+     */
+    public List<T> getResultList() {
+        return execute(limit);
+    }
+
+    /**
+     * Executes the query, and creates an instance of the result class
+     * (for example a record) for every result, with the constructor whose parameters
+     * are the selected fields, in the order they were selected, and of the same types.
+     * The result class can not be an entity.
+     * All fields are selected, in the order they are declared, if select() was not used.
+     * Foreign keys are passed as the primary keys of the referenced entities.
+     *
+     * @param resultClass The class of the results
+     * @return A list of the instances of the resultClass, or an empty list
+     */
+    public <R> List<R> getResultList(Class<R> resultClass) {
+        List<ColumnMetadata> columns = selection.isEmpty() ? metadata.getColumns() : selection;
+
+        return entityManager.getProjectedResultList(resultClass, metadata, columns,
+                getSql(limit > 0, columns), getParameters(limit));
+    }
+
+    /**
+     * Executes the query, limited to one result.
+     *
+     * @return The first matching entity, or null if there is none
+     */
+    public T getFirstResult() {
+        List<T> results = execute(1);
+
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    private List<T> execute(int limit) {
+        if (!selection.isEmpty()) {
+            String message = String.format("The fields selected from \"%s\" can only be read with getResultList(Class).",
+                    metadata.getEntityClass().getName());
+            throw new EntityManagerException(message);
+        }
+
+        return entityManager.getResultList(metadata, getSql(limit > 0, List.of()), getParameters(limit));
+    }
+
+    /**
+     * The SQL executed by getResultList() (or getResultList(Class) after select()).
+     */
+    String getSql() {
+        return getSql(limit > 0, selection);
+    }
+
+    /**
+     * The parameters of getSql(), in the order of its placeholders.
+     */
+    List<Object> getParameters() {
+        return getParameters(limit);
+    }
+
+    private List<Object> getParameters(int limit) {
+        List<Object> queryParameters = new ArrayList<>(parameters);
+        if (limit > 0) {
+            queryParameters.add(limit);
+        }
+
+        return queryParameters;
+    }
+
+    /**
+     * Returns the SQL of the query, selecting the given columns, or all columns if the list is empty.
+     */
+    private String getSql(boolean limited, List<ColumnMetadata> columns) {
+        Shape shape = new Shape(metadata.getEntityClass(), List.copyOf(columns),
+                List.copyOf(conditions), List.copyOf(orderings), limited);
+
+        String sql = SQL_CACHE.get(shape);
+        if (sql == null) {
+            sql = compile(limited, columns);
+            if (SQL_CACHE.size() < MAX_CACHED_SHAPES) {
+                SQL_CACHE.putIfAbsent(shape, sql);
+            }
+        }
+
+        return sql;
+    }
+
+    private String compile(boolean limited, List<ColumnMetadata> columns) {
+        StringBuilder sql = new StringBuilder();
+
+        if (columns.isEmpty()) {
+            sql.append(metadata.getSelectSql());
+        } else {
+            List<String> columnNames = new ArrayList<>();
+            for (ColumnMetadata column : columns) {
+                columnNames.add(String.format("`%s`", column.getName()));
+            }
+
+            sql.append(String.format("select %s from `%s`", String.join(", ", columnNames), metadata.getTableName()));
+        }
+
+        for (int i = 0; i < conditions.size(); i++) {
+            Condition condition = conditions.get(i);
+
+            sql.append(i == 0 ? " where " : " and ")
+                    .append('`').append(condition.column().getName()).append("` ")
+                    .append(condition.operator().getSql());
+
+            if (!condition.operator().isUnary()) {
+                sql.append(" ?");
+            }
+        }
+
+        for (int i = 0; i < orderings.size(); i++) {
+            Ordering ordering = orderings.get(i);
+
+            sql.append(i == 0 ? " order by " : ", ")
+                    .append('`').append(ordering.column().getName()).append('`')
+                    .append(ordering.ascending() ? " asc" : " desc");
+        }
+
+        if (limited) {
+            sql.append(" limit ?");
+        }
+
+        return sql.toString();
+    }
+
+    private record Condition(ColumnMetadata column, Operator operator) {
+    }
+
+    private record Ordering(ColumnMetadata column, boolean ascending) {
+    }
+
+    private record Shape(Class<?> entityClass, List<ColumnMetadata> columns, List<Condition> conditions,
+                         List<Ordering> orderings, boolean limited) {
+    }
+}
@@ -0,0 +1,98 @@
+package ORM;
+
+import ORM.Annotations.FetchType;
+
+/**
+ * A reference to an entity, used as the type of a foreign key field
+ * (for example "private Ref&lt;School&gt; school;").
+ *
+ * When the foreign key is annotated with fetch = FetchType.LAZY,
+ * the EntityManager only fills in the value of the foreign key column,
+ * without querying the referenced table. The referenced entity is
+ * retrieved the first time the get() method is called.
+ *
+ * @see FetchType
+ */
+public final class Ref<T> {
+
+    private final Class<T> entityClass;
+    private final long id;
+    private final EntityManager entityManager;
+    private volatile T entity;
+    private volatile boolean loaded;
+
+    Ref(Class<T> entityClass, long id, T entity, EntityManager entityManager, boolean loaded) {
+        this.entityClass = entityClass;
+        this.id = id;
+        this.entity = entity;
+        this.entityManager = entityManager;
+        this.loaded = loaded;
+    }
+
+    /**
+     * Used to create a reference to an existing entity,
+     * for example when setting the foreign key field of a new entity.
+     *
+     * @param entity The referenced entity
+     * @return A loaded reference to the entity
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Ref<T> of(T entity) {
+        return new Ref<>((Class<T>) entity.getClass(), 0, entity, null, true);
+    }
+
+    /**
+     * Returns the primary key of the referenced entity,
+     * without retrieving it from the database.
+     *
+     * @return The value of the foreign key
+     */
+    public long getId() {
+        T current = entity;
+        if (current != null) {
+            Object primaryKey = EntityMetadataRegistry.get(entityClass).getPrimaryKey().getValue(current);
+            return ((Number) primaryKey).longValue();
+        }
+
+        return id;
+    }
+
+    /**
+     * Returns the referenced entity, retrieving it from
+     * the database the first time the method is called.
+     *
+     * @return The referenced entity; Null if it does not exist in the database
+     */
+    public T get() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    entity = entityManager.find(entityClass, id);
+                    loaded = true;
+                }
+            }
+        }
+
+        return entity;
+    }
+
+    /**
+     * Whether the referenced entity has already been retrieved.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public Class<T> getEntityClass() {
+        return entityClass;
+    }
+
+    @Override
+    public String toString() {
+        return "Ref{" +
+                "entityClass=" + entityClass.getSimpleName() +
+                ", id=" + getId() +
+                ", loaded=" + loaded +
+                '}';
+    }
+}
@@ -0,0 +1,75 @@
+package ORM;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * The names of the tables of the current database, loaded with a single
+ * information_schema query the first time they are needed.
+ *
+ * The EntityManager keeps the names current when it creates or drops a table,
+ * so checking that the table of an entity exists does not query the database.
+ * A registry can be shared by all EntityManager instances of an EntityManagerFactory.
+ * The names are replaced as a whole when they are loaded, and every check reads
+ * them once, so a check never sees them missing while another thread reloads them.
+ *
+ * @see EntityManager#refreshSchema()
+ */
+final class SchemaRegistry {
+
+    static final String TABLE_NAMES_SQL =
+            "select table_name from information_schema.tables where table_schema = database()";
+
+    private volatile Set<String> tableNames;
+
+    /**
+     * Replaces the table names with the given ones.
+     */
+    Set<String> load(Collection<String> names) {
+        Set<String> loadedNames = ConcurrentHashMap.newKeySet();
+        for (String name : names) {
+            loadedNames.add(name.toLowerCase(Locale.ROOT));
+        }
+
+        tableNames = loadedNames;
+        return loadedNames;
+    }
+
+    /**
+     * Whether the database has a table with the given name. The names are
+     * loaded with the given loader first if they are not loaded yet,
+     * or were invalidated.
+     */
+    boolean contains(String tableName, Supplier<Collection<String>> loader) {
+        Set<String> names = tableNames;
+        if (names == null) {
+            names = load(loader.get());
+        }
+
+        return names.contains(tableName.toLowerCase(Locale.ROOT));
+    }
+
+    void add(String tableName) {
+        Set<String> names = tableNames;
+        if (names != null) {
+            names.add(tableName.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    void remove(String tableName) {
+        Set<String> names = tableNames;
+        if (names != null) {
+            names.remove(tableName.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Forgets the table names, so they are loaded again when they are next needed.
+     */
+    void invalidate() {
+        tableNames = null;
+    }
+}
@@ -0,0 +1,87 @@
+package ORM;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the prepared statements of a single connection, keyed by their SQL,
+ * so that the statements generated by the EntityManager are prepared
+ * only once and then reused with different parameters.
+ *
+ * A statement is taken out of the cache with acquire() and must be
+ * given back with release() after it has been executed. Until then no one
+ * else can use it, which makes the cache safe to use from multiple threads.
+ */
+final class StatementCache extends StatementSource {
+
+    private static final int MAX_STATEMENTS = 256;
+
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements;
+
+    StatementCache(Connection connection) {
+        this.connection = connection;
+        this.statements = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the cached statement for the given SQL,
+     * or prepares a new one if it is not cached or is in use.
+     */
+    @Override
+    PreparedStatement acquire(String sql, boolean returnGeneratedKeys) throws SQLException {
+        PreparedStatement statement = statements.remove(sql);
+        if (statement != null) {
+            return statement;
+        }
+
+        return returnGeneratedKeys
+                ? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                : connection.prepareStatement(sql);
+    }
+
+    /**
+     * Gives the statement back to the cache. If the cache already has
+     * a statement for the same SQL, or if it is full, the statement is closed.
+     */
+    @Override
+    void release(String sql, PreparedStatement statement) throws SQLException {
+        if (statement.isClosed()) {
+            return;
+        }
+
+        statement.clearParameters();
+        statement.clearBatch();
+
+        if (statements.size() >= MAX_STATEMENTS || statements.putIfAbsent(sql, statement) != null) {
+            statement.close();
+        }
+    }
+
+    @Override
+    PreparedStatement prepare(String sql) throws SQLException {
+        return connection.prepareStatement(sql);
+    }
+
+    @Override
+    void discard(PreparedStatement statement) throws SQLException {
+        statement.close();
+    }
+
+    /**
+     * Closes all cached statements.
+     */
+    @Override
+    void close() throws SQLException {
+        for (String sql : statements.keySet()) {
+            PreparedStatement statement = statements.remove(sql);
+            if (statement != null) {
+                statement.close();
+            }
+        }
+    }
+}
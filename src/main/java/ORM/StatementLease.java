@@ -0,0 +1,48 @@
+package ORM;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A prepared statement taken from a StatementSource,
+ * which is given back when the lease is closed.
+ *
+ * @see StatementSource
+ */
+final class StatementLease implements AutoCloseable {
+
+    private final StatementSource source;
+    private final String sql;
+    private final PreparedStatement statement;
+    private final boolean reusable;
+    private boolean closed;
+
+    StatementLease(StatementSource source, String sql, PreparedStatement statement, boolean reusable) {
+        this.source = source;
+        this.sql = sql;
+        this.statement = statement;
+        this.reusable = reusable;
+    }
+
+    PreparedStatement getStatement() {
+        return statement;
+    }
+
+    String getSql() {
+        return sql;
+    }
+
+    boolean isReusable() {
+        return reusable;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        source.giveBack(this);
+    }
+}
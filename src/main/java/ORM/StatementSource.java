@@ -0,0 +1,90 @@
+package ORM;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where the EntityManager takes its prepared statements from.
+ *
+ * Statements are only taken with lease() or leaseOnce(), in a try-with-resources
+ * block, so every statement is given back (or closed) as soon as its results
+ * have been read. The number of statements that are currently taken
+ * is kept, so a statement that is never given back can be detected.
+ *
+ * @see StatementCache
+ * @see DataSourceStatementSource
+ */
+abstract class StatementSource {
+
+    private final AtomicInteger openStatements = new AtomicInteger();
+
+    /**
+     * Takes a statement for SQL generated by the EntityManager, which can be reused.
+     * A statement that returns the keys generated by the database is prepared
+     * if returnGeneratedKeys is true. The same SQL should always be taken
+     * with the same returnGeneratedKeys.
+     */
+    final StatementLease lease(String sql, boolean returnGeneratedKeys) throws SQLException {
+        PreparedStatement statement = acquire(sql, returnGeneratedKeys);
+        openStatements.incrementAndGet();
+
+        return new StatementLease(this, sql, statement, true);
+    }
+
+    /**
+     * Takes a new statement for SQL that is executed only once
+     * (for example a hand-written query or a create table statement).
+     * The statement is closed when the lease is closed.
+     */
+    final StatementLease leaseOnce(String sql) throws SQLException {
+        PreparedStatement statement = prepare(sql);
+        openStatements.incrementAndGet();
+
+        return new StatementLease(this, sql, statement, false);
+    }
+
+    /**
+     * Called by StatementLease.close().
+     */
+    final void giveBack(StatementLease lease) throws SQLException {
+        openStatements.decrementAndGet();
+
+        if (lease.isReusable()) {
+            release(lease.getSql(), lease.getStatement());
+        } else {
+            discard(lease.getStatement());
+        }
+    }
+
+    /**
+     * Returns the number of statements that are taken and not given back yet.
+     */
+    final int getOpenStatementCount() {
+        return openStatements.get();
+    }
+
+    /**
+     * Makes every statement taken by the current thread, until unpin() is called,
+     * be prepared on the same connection as the statement of the given lease.
+     * Does nothing for a source with a single connection.
+     */
+    void pin(StatementLease lease) {
+    }
+
+    void unpin() {
+    }
+
+    abstract PreparedStatement acquire(String sql, boolean returnGeneratedKeys) throws SQLException;
+
+    abstract void release(String sql, PreparedStatement statement) throws SQLException;
+
+    abstract PreparedStatement prepare(String sql) throws SQLException;
+
+    abstract void discard(PreparedStatement statement) throws SQLException;
+
+    /**
+     * Closes all statements kept by the source.
+     */
+    abstract void close() throws SQLException;
+}
@@ -0,0 +1,120 @@
+package ORM;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The writes of an EntityManager during a transaction.
+ *
+ * persist() and remove() calls are queued instead of executed, and the queue is
+ * flushed to the database before every query and when the transaction is committed,
+ * so many rows are written with a few batches and a single commit.
+ *
+ * Persisting an entity that is queued for removal cancels the removal, and
+ * removing an entity that is queued to be persisted cancels the persist.
+ * Queued writes are matched by the class and primary key of their entity,
+ * so the last write of a row wins whichever instance (or primary key) it was given.
+ */
+final class UnitOfWork {
+
+    private final List<Object> persists = new ArrayList<>();
+    private final Set<Object> queuedPersists = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final List<Removal> removals = new ArrayList<>();
+    private final Set<EntityKey> written = new LinkedHashSet<>();
+
+    void persist(Object entity) {
+        long primaryKey = getPrimaryKey(entity);
+        removals.removeIf(removal -> removal.entity() == entity
+                || isSameRow(removal.entityClass(), removal.primaryKey(), entity.getClass(), primaryKey));
+
+        if (queuedPersists.add(entity)) {
+            persists.add(entity);
+        }
+    }
+
+    /**
+     * Queues the removal, unless it removes an entity that was queued
+     * to be persisted and was never saved (its primary key is 0).
+     */
+    void remove(Removal removal) {
+        Object entity = removal.entity();
+        boolean cancelled = persists.removeIf(queued -> queued == entity
+                || isSameRow(removal.entityClass(), removal.primaryKey(), queued.getClass(), getPrimaryKey(queued)));
+
+        if (cancelled) {
+            queuedPersists.clear();
+            queuedPersists.addAll(persists);
+
+            if (entity != null && removal.primaryKey() == 0) {
+                return;
+            }
+        }
+
+        removals.add(removal);
+    }
+
+    /**
+     * An entity that was never saved has the primary key 0, which does not identify a row.
+     */
+    private static boolean isSameRow(Class<?> entityClass, long primaryKey, Class<?> otherClass, long otherPrimaryKey) {
+        return primaryKey != 0 && entityClass == otherClass && primaryKey == otherPrimaryKey;
+    }
+
+    private static long getPrimaryKey(Object entity) {
+        return EntityMetadataRegistry.get(entity.getClass()).getPrimaryKey().getLong(entity);
+    }
+
+    boolean isEmpty() {
+        return persists.isEmpty() && removals.isEmpty();
+    }
+
+    /**
+     * Returns the queued entities to be persisted, in the order they were queued, and empties the queue.
+     */
+    List<Object> takePersists() {
+        List<Object> entities = new ArrayList<>(persists);
+        persists.clear();
+        queuedPersists.clear();
+
+        return entities;
+    }
+
+    /**
+     * Returns the queued removals, in the order they were queued, and empties the queue.
+     */
+    List<Removal> takeRemovals() {
+        List<Removal> queued = new ArrayList<>(removals);
+        removals.clear();
+
+        return queued;
+    }
+
+    /**
+     * Records an entity written by the transaction, so that it can be evicted
+     * from the second-level cache again when the transaction ends.
+     */
+    void written(Class<?> entityClass, long primaryKey) {
+        written.add(new EntityKey(entityClass, primaryKey));
+    }
+
+    Set<EntityKey> getWritten() {
+        return written;
+    }
+
+    /**
+     * A queued removal of the entity with the given class and primary key.
+     *
+     * @param entity The removed instance, or null if it was removed by its primary key
+     * @param mustExist Whether the removal fails if there is no such row,
+     *                  as it does for remove(), but not for removeAll()
+     */
+    record Removal(Class<?> entityClass, long primaryKey, Object entity, boolean mustExist) {
+    }
+
+    record EntityKey(Class<?> entityClass, long primaryKey) {
+    }
+}
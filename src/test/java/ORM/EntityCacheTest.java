@@ -0,0 +1,178 @@
+package ORM;
+
+import Example.Entities.School;
+import Example.Entities.Teacher;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityCacheTest {
+
+    private static final Duration HOUR = Duration.ofHours(1);
+
+    @Test
+    void returnsCachedState() {
+        EntityCache cache = new EntityCache(10, EntityCache.EvictionPolicy.LRU, HOUR);
+        Object[] state = {1, "Coding School", "New York City"};
+
+        cache.put(School.class, 1, state, System.nanoTime());
+
+        assertSame(state, cache.get(School.class, 1));
+        assertNull(cache.get(School.class, 2));
+        assertNull(cache.get(Teacher.class, 1));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    void lruEvictsLeastRecentlyUsed() {
+        EntityCache cache = new EntityCache(3, EntityCache.EvictionPolicy.LRU, HOUR);
+        cache.put(School.class, 1, new Object[0], System.nanoTime());
+        cache.put(School.class, 2, new Object[0], System.nanoTime());
+        cache.put(School.class, 3, new Object[0], System.nanoTime());
+
+        cache.get(School.class, 1);
+        cache.put(School.class, 4, new Object[0], System.nanoTime());
+
+        assertNotNull(cache.get(School.class, 1));
+        assertNull(cache.get(School.class, 2));
+        assertNotNull(cache.get(School.class, 3));
+        assertNotNull(cache.get(School.class, 4));
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void lfuEvictsLeastFrequentlyUsed() {
+        EntityCache cache = new EntityCache(3, EntityCache.EvictionPolicy.LFU, HOUR);
+        cache.put(School.class, 1, new Object[0], System.nanoTime());
+        cache.put(School.class, 2, new Object[0], System.nanoTime());
+        cache.put(School.class, 3, new Object[0], System.nanoTime());
+
+        cache.get(School.class, 1);
+        cache.get(School.class, 1);
+        cache.get(School.class, 3);
+        cache.put(School.class, 4, new Object[0], System.nanoTime());
+
+        assertNull(cache.get(School.class, 2));
+
+        // 4 was used once since it was added, 3 twice
+        cache.put(School.class, 5, new Object[0], System.nanoTime());
+
+        assertNull(cache.get(School.class, 4));
+        assertNotNull(cache.get(School.class, 1));
+        assertNotNull(cache.get(School.class, 3));
+        assertNotNull(cache.get(School.class, 5));
+    }
+
+    @Test
+    void expiredEntitiesAreNotReturned() throws InterruptedException {
+        EntityCache cache = new EntityCache(10, EntityCache.EvictionPolicy.LRU, Duration.ofMillis(1));
+        cache.put(School.class, 1, new Object[0], System.nanoTime());
+
+        Thread.sleep(5);
+
+        assertNull(cache.get(School.class, 1));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void evictAllRemovesOnlyEntitiesOfTheClass() {
+        EntityCache cache = new EntityCache(10, EntityCache.EvictionPolicy.LRU, HOUR);
+        cache.put(School.class, 1, new Object[0], System.nanoTime());
+        cache.put(School.class, 2, new Object[0], System.nanoTime());
+        cache.put(Teacher.class, 1, new Object[0], System.nanoTime());
+
+        cache.evictAll(School.class);
+
+        assertNull(cache.get(School.class, 1));
+        assertNull(cache.get(School.class, 2));
+        assertNotNull(cache.get(Teacher.class, 1));
+    }
+
+    @Test
+    void evictedEntryFreesItsPlace() {
+        EntityCache cache = new EntityCache(2, EntityCache.EvictionPolicy.LRU, HOUR);
+        cache.put(School.class, 1, new Object[0], System.nanoTime());
+        cache.put(School.class, 2, new Object[0], System.nanoTime());
+
+        cache.evict(School.class, 1);
+        cache.put(School.class, 3, new Object[0], System.nanoTime());
+
+        assertNotNull(cache.get(School.class, 2));
+        assertNotNull(cache.get(School.class, 3));
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    void largeCacheKeepsItsMaximumSize() {
+        EntityCache cache = new EntityCache(1000, EntityCache.EvictionPolicy.LFU, HOUR);
+        for (int i = 1; i <= 5000; i++) {
+            cache.put(School.class, i, new Object[0], System.nanoTime());
+        }
+
+        assertEquals(1000, cache.size());
+        assertEquals(4000, cache.getEvictionCount());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void stateReadBeforeEvictionIsNotCached() {
+        EntityCache cache = new EntityCache(10, EntityCache.EvictionPolicy.LRU, HOUR);
+        long readStartedAt = System.nanoTime();
+
+        cache.evict(School.class, 1);
+        cache.put(School.class, 1, new Object[0], readStartedAt);
+        cache.put(School.class, 2, new Object[0], readStartedAt);
+
+        assertNull(cache.get(School.class, 1));
+        assertNotNull(cache.get(School.class, 2));
+
+        cache.put(School.class, 1, new Object[0], System.nanoTime());
+        assertNotNull(cache.get(School.class, 1));
+    }
+
+    @Test
+    void stateReadBeforeEvictAllIsNotCached() {
+        EntityCache cache = new EntityCache(10, EntityCache.EvictionPolicy.LRU, HOUR);
+        long readStartedAt = System.nanoTime();
+
+        cache.evictAll(Teacher.class);
+        cache.put(School.class, 1, new Object[0], readStartedAt);
+
+        assertNull(cache.get(School.class, 1));
+    }
+
+    @Test
+    void forgottenEvictionsStillRejectOlderStates() {
+        EntityCache cache = new EntityCache(2, EntityCache.EvictionPolicy.LRU, HOUR);
+        long readStartedAt = System.nanoTime();
+
+        for (int i = 1; i <= 10; i++) {
+            cache.evict(School.class, i);
+        }
+        cache.put(School.class, 1, new Object[0], readStartedAt);
+
+        assertNull(cache.get(School.class, 1));
+    }
+
+    @Test
+    void stateOlderThanTimeToLiveIsNotCached() {
+        EntityCache cache = new EntityCache(10, EntityCache.EvictionPolicy.LRU, HOUR);
+
+        cache.put(School.class, 1, new Object[0], System.nanoTime() - Duration.ofHours(2).toNanos());
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void rejectsNonPositiveMaximumSize() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new EntityCache(0, EntityCache.EvictionPolicy.LRU, HOUR));
+    }
+}
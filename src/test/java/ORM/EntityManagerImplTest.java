@@ -0,0 +1,320 @@
+package ORM;
+
+import Example.Entities.Course;
+import Example.Entities.School;
+import Example.Entities.Teacher;
+import ORM.Annotations.Cacheable;
+import ORM.Annotations.Column;
+import ORM.Annotations.Entity;
+import ORM.Annotations.FetchType;
+import ORM.Annotations.ForeignKey;
+import ORM.Annotations.Id;
+import ORM.Annotations.Table;
+import ORM.Annotations.Version;
+import ORM.Exceptions.EntityManagerException;
+import ORM.Exceptions.OptimisticLockException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityManagerImplTest {
+
+    private static final String COURSE_NAMES = "select `name`, `school_id` from `courses`";
+    private static final String DOCUMENTS = "select `id`, `title`, `version` from `documents`";
+    private static final List<String> DOCUMENT_COLUMNS = List.of("id", "title", "version");
+    private static final String SCHOOLS = "select `id`, `name`, `town` from `schools`";
+    private static final List<String> SCHOOL_COLUMNS = List.of("id", "name", "town");
+
+    private final FakeJdbc jdbc = new FakeJdbc();
+
+    private EntityManagerImpl entityManager(EntityCache entityCache) {
+        SchemaRegistry schemaRegistry = new SchemaRegistry();
+        schemaRegistry.load(List.of("cities", "documents", "schools", "teachers", "courses"));
+
+        return new EntityManagerImpl(jdbc.connection(), false, entityCache, schemaRegistry);
+    }
+
+    @Test
+    void closeKeepsConnectionOfTheCaller() {
+        new EntityManagerImpl(jdbc.connection()).close();
+
+        assertFalse(jdbc.isConnectionClosed());
+    }
+
+    @Test
+    void closeClosesOwnedConnection() {
+        new EntityManagerImpl(jdbc.connection(), true, null, new SchemaRegistry()).close();
+
+        assertTrue(jdbc.isConnectionClosed());
+    }
+
+    @Test
+    void onlyGeneratedSelectsFillTheCache() {
+        EntityCache entityCache = new EntityCache(10, EntityCache.EvictionPolicy.LRU, Duration.ofHours(1));
+        EntityManagerImpl entityManager = entityManager(entityCache);
+
+        jdbc.returnRows("select id, upper(name)", List.of("id", "name"), new Object[]{1, "SOFIA"});
+        City computed = entityManager.createQuery("select id, upper(name) as name from cities", City.class).get(0);
+
+        assertEquals("SOFIA", computed.name);
+        assertEquals(0, entityCache.size());
+
+        jdbc.returnRows("select `id`, `name` from `cities`", List.of("id", "name"), new Object[]{1, "Sofia"});
+        entityManager(entityCache).find(City.class, 1);
+
+        assertEquals(1, entityCache.size());
+        assertEquals("Sofia", entityManager(entityCache).find(City.class, 1).name);
+        assertEquals(2, jdbc.getExecutions().size());
+    }
+
+    @Test
+    void updateOfDeletedRowDoesNotManageTheEntity() {
+        EntityManagerImpl entityManager = entityManager(null);
+        jdbc.returnRows(SCHOOLS, SCHOOL_COLUMNS, new Object[]{1, "Coding School", "Sofia"});
+        School school = entityManager.find(School.class, 1);
+
+        school.setName("Other School");
+        jdbc.returnUpdateCount(0);
+
+        assertFalse(entityManager.persist(school));
+        assertNull(entityManager.find(School.class, 1));
+        assertEquals(3, jdbc.getExecutions().size());
+    }
+
+    @Test
+    void batchUpdateOfDeletedRowDoesNotManageTheEntity() {
+        EntityManagerImpl entityManager = entityManager(null);
+        jdbc.returnRows(SCHOOLS, SCHOOL_COLUMNS,
+                new Object[]{1, "First", "Sofia"}, new Object[]{2, "Second", "Varna"});
+        List<School> schools = entityManager.findAll(School.class);
+
+        schools.forEach(school -> school.setTown("Plovdiv"));
+        jdbc.returnBatchCounts(1, 0);
+        entityManager.persistAll(schools);
+
+        assertSame(schools.get(0), entityManager.find(School.class, 1));
+        assertNull(entityManager.find(School.class, 2));
+        assertEquals(3, jdbc.getExecutions().size());
+    }
+
+    @Test
+    void inListsArePaddedToFewSizes() {
+        assertEquals(List.of(), EntityManagerImpl.padInList(List.of(), 500));
+        assertEquals(List.of(7L), EntityManagerImpl.padInList(List.of(7L), 500));
+        assertEquals(List.of(1L, 2L, 3L, 3L), EntityManagerImpl.padInList(List.of(1L, 2L, 3L), 500));
+        assertEquals(64, EntityManagerImpl.padInList(Collections.nCopies(33, 1L), 500).size());
+        assertEquals(500, EntityManagerImpl.padInList(Collections.nCopies(300, 1L), 500).size());
+        assertEquals(500, EntityManagerImpl.padInList(Collections.nCopies(500, 1L), 500).size());
+    }
+
+    @Test
+    void foreignKeysAreReadWithPaddedInList() {
+        EntityManagerImpl entityManager = entityManager(null);
+        jdbc.returnRows("select `id`, `first_name`", List.of("id", "first_name", "last_name", "age", "school_id"),
+                new Object[]{1, "A", "A", 30, 1L}, new Object[]{2, "B", "B", 30, 2L}, new Object[]{3, "C", "C", 30, 3L});
+        jdbc.returnRows(SCHOOLS, SCHOOL_COLUMNS,
+                new Object[]{1, "First", "Sofia"}, new Object[]{2, "Second", "Varna"}, new Object[]{3, "Third", "Ruse"});
+
+        entityManager.findAll(Teacher.class);
+
+        FakeJdbc.Execution schools = jdbc.getExecutions().get(1);
+        assertEquals(SCHOOLS + " where `id` in (?, ?, ?, ?)", schools.sql());
+        assertEquals(List.of(1L, 2L, 3L, 3L), schools.parameters().get(0));
+    }
+
+    @Test
+    void unchangedEntityIsNotWritten() {
+        EntityManagerImpl entityManager = entityManager(null);
+        jdbc.returnRows(SCHOOLS, SCHOOL_COLUMNS, new Object[]{1, "Coding School", "Sofia"});
+        School school = entityManager.find(School.class, 1);
+
+        assertTrue(entityManager.persist(school));
+        assertEquals(1, jdbc.getExecutions().size());
+    }
+
+    @Test
+    void onlyChangedColumnsAreUpdated() {
+        EntityManagerImpl entityManager = entityManager(null);
+        jdbc.returnRows(SCHOOLS, SCHOOL_COLUMNS, new Object[]{1, "Coding School", "Sofia"});
+        School school = entityManager.find(School.class, 1);
+
+        school.setName("Other School");
+        entityManager.persist(school);
+
+        FakeJdbc.Execution update = jdbc.getExecutions().get(1);
+        assertEquals(String.format("update `schools`%nset `name` = ?%nwhere `id` = ?"), update.sql());
+        assertEquals(List.of("Other School", 1), update.parameters().get(0));
+    }
+
+    @Test
+    void foreignKeyToIntPrimaryKeyIsComparedWithTheLongReadFromTheDatabase() {
+        EntityManagerImpl entityManager = entityManager(null);
+        jdbc.returnRows("select `id`, `first_name`", List.of("id", "first_name", "last_name", "age", "school_id"),
+                new Object[]{1, "A", "A", 30, 1L});
+        jdbc.returnRows(SCHOOLS, SCHOOL_COLUMNS, new Object[]{1, "Coding School", "Sofia"});
+        Teacher teacher = entityManager.find(Teacher.class, 1);
+
+        assertTrue(entityManager.persist(teacher));
+        assertEquals(2, jdbc.getExecutions().size());
+    }
+
+    @Test
+    void referenceIsComparedWithTheLongReadFromTheDatabase() {
+        EntityManagerImpl entityManager = entityManager(null);
+        jdbc.returnRows("select `id`, `school_id`", List.of("id", "school_id"), new Object[]{1, 1L});
+        LazyTeacher teacher = entityManager.find(LazyTeacher.class, 1);
+
+        assertTrue(entityManager.persist(teacher));
+        assertEquals(1, jdbc.getExecutions().size());
+
+        School school = new School();
+        school.setId(1);
+        teacher.school = Ref.of(school);
+
+        assertTrue(entityManager.persist(teacher));
+        assertEquals(1, jdbc.getExecutions().size());
+    }
+
+    @Test
+    void projectionUsesTheConstructorWithTheExactTypes() {
+        EntityManagerImpl entityManager = entityManager(null);
+        jdbc.returnRows(COURSE_NAMES, List.of("name", "school_id"), new Object[]{"Java", 1L});
+
+        List<CourseName> courses = entityManager.from(Course.class).select("name", "school").getResultList(CourseName.class);
+
+        assertEquals(List.of(new CourseName("Java", 1)), courses);
+    }
+
+    @Test
+    void projectionWidensNumbersToTheParameterType() {
+        EntityManagerImpl entityManager = entityManager(null);
+        jdbc.returnRows(COURSE_NAMES, List.of("name", "school_id"), new Object[]{"Java", 1L});
+
+        List<WideCourseName> courses = entityManager.from(Course.class).select("name", "school")
+                .getResultList(WideCourseName.class);
+
+        assertEquals(List.of(new WideCourseName("Java", 1L)), courses);
+    }
+
+    @Test
+    void projectionRejectsAmbiguousConstructors() {
+        EntityManagerImpl entityManager = entityManager(null);
+        Query<Course> query = entityManager.from(Course.class).select("name", "school");
+
+        EntityManagerException exception = assertThrows(EntityManagerException.class,
+                () -> query.getResultList(AmbiguousCourseName.class));
+
+        assertTrue(exception.getMessage().contains("more than one constructor"), exception.getMessage());
+        assertTrue(jdbc.getExecutions().isEmpty());
+    }
+
+    @Test
+    void projectionRejectsEntities() {
+        EntityManagerImpl entityManager = entityManager(null);
+        Query<Course> query = entityManager.from(Course.class).select("name");
+
+        assertThrows(EntityManagerException.class, () -> query.getResultList(School.class));
+        assertTrue(jdbc.getExecutions().isEmpty());
+    }
+
+    @Test
+    void versionedBatchUpdateReportsOnlyTheConflicts() {
+        EntityManagerImpl entityManager = entityManager(null);
+        jdbc.returnRows(DOCUMENTS, DOCUMENT_COLUMNS, new Object[]{1, "a", 1}, new Object[]{2, "b", 1},
+                new Object[]{3, "c", 1}, new Object[]{4, "d", 1});
+        List<Document> documents = entityManager.findAll(Document.class);
+
+        documents.forEach(document -> document.title += "!");
+        jdbc.returnBatchCounts(1, 0, 1, 0);
+
+        OptimisticLockException exception = assertThrows(OptimisticLockException.class,
+                () -> entityManager.persistAll(documents));
+
+        assertTrue(exception.getMessage().contains("with ids [2, 4]"), exception.getMessage());
+        assertEquals(List.of(2, 1, 2, 1), documents.stream().map(document -> document.version).toList());
+
+        // the rows without a conflict are managed with their new state, so they are not written again
+        int executions = jdbc.getExecutions().size();
+        entityManager.persistAll(List.of(documents.get(0), documents.get(2)));
+        assertEquals(executions, jdbc.getExecutions().size());
+
+        // a conflicting row keeps the state it was read with
+        entityManager.persist(documents.get(1));
+        FakeJdbc.Execution update = jdbc.getExecutions().get(executions);
+        assertEquals(String.format("update `documents`%nset `title` = ?, `version` = `version` + 1%nwhere `id` = ? and `version` = ?"),
+                update.sql());
+        assertEquals(List.of("b!", 2L, 1), update.parameters().get(0));
+    }
+
+    @Test
+    void versionedBatchDeleteKeepsConflictsManaged() {
+        EntityManagerImpl entityManager = entityManager(null);
+        jdbc.returnRows(DOCUMENTS, DOCUMENT_COLUMNS, new Object[]{1, "a", 1}, new Object[]{2, "b", 1});
+        List<Document> documents = entityManager.findAll(Document.class);
+
+        jdbc.returnBatchCounts(1, 0);
+        OptimisticLockException exception = assertThrows(OptimisticLockException.class,
+                () -> entityManager.removeAll(documents));
+
+        assertTrue(exception.getMessage().contains("with id 2 "), exception.getMessage());
+        assertSame(documents.get(1), entityManager.find(Document.class, 2));
+
+        int executions = jdbc.getExecutions().size();
+        assertNull(entityManager.find(Document.class, 1));
+        assertEquals(executions + 1, jdbc.getExecutions().size());
+    }
+
+    record CourseName(String name, int schoolId) {
+    }
+
+    record WideCourseName(String name, long schoolId) {
+    }
+
+    record AmbiguousCourseName(String name, long schoolId) {
+
+        AmbiguousCourseName(String name, double schoolId) {
+            this(name, (long) schoolId);
+        }
+    }
+
+    @Entity
+    @Table(name = "teachers")
+    static class LazyTeacher {
+
+        @Id
+        private int id;
+
+        @ForeignKey(name = "school_id", referencedColumnName = "id", fetch = FetchType.LAZY)
+        private Ref<School> school;
+    }
+
+    @Entity
+    @Table(name = "documents")
+    static class Document {
+
+        @Id
+        private long id;
+
+        @Column
+        private String title;
+
+        @Version
+        private int version;
+    }
+
+    @Cacheable
+    @Entity
+    @Table(name = "cities")
+    static class City {
+
+        @Id
+        private int id;
+
+        @Column
+        private String name;
+    }
+}
@@ -0,0 +1,143 @@
+package ORM;
+
+import Example.Entities.Course;
+import Example.Entities.School;
+import Example.Entities.Teacher;
+import ORM.Annotations.Column;
+import ORM.Annotations.Entity;
+import ORM.Annotations.Id;
+import ORM.Annotations.Table;
+import ORM.Annotations.Version;
+import ORM.Exceptions.AnnotationException;
+import ORM.Exceptions.EntityManagerException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityMetadataTest {
+
+    @Test
+    void mapsAnnotatedFieldsToColumns() {
+        EntityMetadata<Teacher> metadata = EntityMetadataRegistry.get(Teacher.class);
+
+        assertEquals("teachers", metadata.getTableName());
+        assertEquals("id", metadata.getPrimaryKey().getName());
+        assertTrue(metadata.getPrimaryKey().isGenerated());
+        assertEquals("`id`, `first_name`, `last_name`, `age`, `school_id`", metadata.getSelectColumnNames());
+        assertEquals(1, metadata.getForeignKeys().size());
+        assertEquals(School.class, metadata.getForeignKeys().get(0).getReferencedClass());
+        assertEquals(4, metadata.getUpdatableColumns().size());
+        assertSame(metadata, EntityMetadataRegistry.get(Teacher.class));
+    }
+
+    @Test
+    void generatesSelectSql() {
+        EntityMetadata<School> metadata = EntityMetadataRegistry.get(School.class);
+
+        assertEquals("select `id`, `name`, `town` from `schools`", metadata.getSelectSql());
+        assertEquals("select `id`, `name`, `town` from `schools` where `id` = ?", metadata.getSelectByPrimaryKeySql());
+        assertEquals("select `id`, `name`, `town` from `schools` where `id` in (?, ?, ?)",
+                metadata.getSelectByPrimaryKeysSql(3));
+        assertEquals("select `id`, `name`, `town` from `schools` where `id` > ? order by `id` limit ?",
+                metadata.getSelectPageSql());
+    }
+
+    @Test
+    void insertSkipsGeneratedPrimaryKey() {
+        EntityMetadata<School> metadata = EntityMetadataRegistry.get(School.class);
+
+        assertEquals(String.format("insert into `schools` (`name`, `town`)%nvalues (?, ?)"), metadata.getInsertSql());
+        assertEquals(String.format("update `schools`%nset `name` = ?, `town` = ?%nwhere `id` = ?"), metadata.getUpdateSql());
+        assertEquals("delete from `schools` where `id` = ?", metadata.getDeleteSql());
+    }
+
+    @Test
+    void upsertOnlyForNaturalKeyWithoutOtherUniqueColumns() {
+        EntityMetadata<Course> course = EntityMetadataRegistry.get(Course.class);
+
+        assertEquals(String.format("insert into `courses` (`id`, `name`, `course_topic`, `price`, `school_id`, `teacher_id`)%n"
+                        + "values (?, ?, ?, ?, ?, ?)%n"
+                        + "on duplicate key update `name` = values(`name`), `course_topic` = values(`course_topic`), "
+                        + "`price` = values(`price`), `school_id` = values(`school_id`), `teacher_id` = values(`teacher_id`)"),
+                course.getUpsertSql());
+
+        assertNull(EntityMetadataRegistry.get(School.class).getUpsertSql());
+        assertNull(EntityMetadataRegistry.get(Document.class).getUpsertSql());
+    }
+
+    @Test
+    void versionIsCheckedAndIncremented() {
+        EntityMetadata<Document> metadata = EntityMetadataRegistry.get(Document.class);
+
+        assertEquals("revision", metadata.getVersion().getName());
+        assertEquals(List.of(metadata.getColumn("title")), metadata.getUpdatableColumns());
+        assertEquals(String.format("update `documents`%nset `title` = ?, `revision` = `revision` + 1%nwhere `id` = ? and `revision` = ?"),
+                metadata.getUpdateSql());
+        assertEquals("delete from `documents` where `id` = ? and `revision` = ?", metadata.getDeleteVersionedSql());
+    }
+
+    @Test
+    void partialUpdateSetsOnlyTheGivenColumns() {
+        EntityMetadata<Teacher> metadata = EntityMetadataRegistry.get(Teacher.class);
+        List<ColumnMetadata> changed = List.of(metadata.getColumn("age"));
+
+        assertEquals(String.format("update `teachers`%nset `age` = ?%nwhere `id` = ?"), metadata.getUpdateSql(changed));
+        assertSame(metadata.getUpdateSql(changed), metadata.getUpdateSql(List.of(metadata.getColumn("age"))));
+        assertSame(metadata.getUpdateSql(), metadata.getUpdateSql(metadata.getUpdatableColumns()));
+    }
+
+    @Test
+    void rejectsInvalidEntities() {
+        assertThrows(AnnotationException.class, () -> EntityMetadata.create(String.class));
+        assertThrows(AnnotationException.class, () -> EntityMetadata.create(WithoutPrimaryKey.class));
+        assertThrows(AnnotationException.class, () -> EntityMetadata.create(WithTwoVersions.class));
+        assertThrows(EntityManagerException.class, () -> EntityMetadata.create(WithStringPrimaryKey.class));
+        assertThrows(EntityManagerException.class, () -> EntityMetadataRegistry.get(School.class).getColumn("missing"));
+    }
+
+    @Entity
+    @Table(name = "documents")
+    static class Document {
+
+        @Id
+        private long id;
+
+        @Column
+        private String title;
+
+        @Version(name = "revision")
+        private int version;
+    }
+
+    @Entity
+    @Table(name = "no_primary_key")
+    static class WithoutPrimaryKey {
+
+        @Column
+        private String name;
+    }
+
+    @Entity
+    @Table(name = "two_versions")
+    static class WithTwoVersions {
+
+        @Id
+        private int id;
+
+        @Version
+        private int version;
+
+        @Version
+        private long otherVersion;
+    }
+
+    @Entity
+    @Table(name = "string_primary_key")
+    static class WithStringPrimaryKey {
+
+        @Id
+        private String id;
+    }
+}
@@ -0,0 +1,245 @@
+package ORM;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A connection that prepares statements without a database. It keeps them so
+ * the tests can check which of them were closed, records every execution with
+ * its parameters, and answers with scripted rows and update counts.
+ */
+final class FakeJdbc {
+
+    private final List<PreparedStatement> prepared = new ArrayList<>();
+    private final List<PreparedStatement> closed = new ArrayList<>();
+    private final List<Execution> executions = new ArrayList<>();
+    private final List<ScriptedRows> scriptedRows = new ArrayList<>();
+    private final Deque<int[]> scriptedBatchCounts = new ArrayDeque<>();
+    private final Deque<Integer> scriptedUpdateCounts = new ArrayDeque<>();
+    private boolean connectionClosed;
+
+    /**
+     * A statement that was executed, with the parameters of every row of its batch
+     * (a single row unless it was executed with executeBatch()).
+     */
+    record Execution(String sql, List<List<Object>> parameters) {
+    }
+
+    private record ScriptedRows(String sqlStart, List<String> columns, List<Object[]> rows) {
+    }
+
+    Connection connection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "prepareStatement" -> statement((String) args[0]);
+                    case "close" -> {
+                        connectionClosed = true;
+                        yield null;
+                    }
+                    case "isClosed" -> connectionClosed;
+                    case "isValid", "getAutoCommit" -> true;
+                    default -> defaultValue(method);
+                });
+    }
+
+    /**
+     * Makes the next query whose SQL starts with sqlStart return the given rows,
+     * with the given column names. Other queries return no rows.
+     */
+    void returnRows(String sqlStart, List<String> columns, Object[]... rows) {
+        scriptedRows.add(new ScriptedRows(sqlStart, columns, List.of(rows)));
+    }
+
+    /**
+     * Makes the next executeBatch() return the given update counts.
+     * Otherwise every statement of a batch updates one row.
+     */
+    void returnBatchCounts(int... counts) {
+        scriptedBatchCounts.add(counts);
+    }
+
+    /**
+     * Makes the next executeUpdate() return the given update count, instead of 1.
+     */
+    void returnUpdateCount(int count) {
+        scriptedUpdateCounts.add(count);
+    }
+
+    List<Execution> getExecutions() {
+        return executions;
+    }
+
+    List<String> getExecutedSql() {
+        return executions.stream().map(Execution::sql).toList();
+    }
+
+    List<PreparedStatement> getPrepared() {
+        return prepared;
+    }
+
+    boolean isConnectionClosed() {
+        return connectionClosed;
+    }
+
+    boolean isClosed(PreparedStatement statement) {
+        return closed.contains(statement);
+    }
+
+    private PreparedStatement statement(String sql) {
+        Map<Integer, Object> parameters = new TreeMap<>();
+        List<List<Object>> batch = new ArrayList<>();
+
+        PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+
+                    if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer index) {
+                        parameters.put(index, name.equals("setNull") ? null : args[1]);
+                        return null;
+                    }
+
+                    return switch (name) {
+                        case "executeQuery" -> {
+                            executions.add(new Execution(sql, List.of(new ArrayList<>(parameters.values()))));
+                            yield resultSet(sql);
+                        }
+                        case "executeUpdate" -> {
+                            executions.add(new Execution(sql, List.of(new ArrayList<>(parameters.values()))));
+                            yield scriptedUpdateCounts.isEmpty() ? 1 : scriptedUpdateCounts.poll();
+                        }
+                        case "execute" -> {
+                            executions.add(new Execution(sql, List.of(new ArrayList<>(parameters.values()))));
+                            yield false;
+                        }
+                        case "addBatch" -> {
+                            batch.add(new ArrayList<>(parameters.values()));
+                            yield null;
+                        }
+                        case "executeBatch" -> {
+                            executions.add(new Execution(sql, List.copyOf(batch)));
+                            int[] counts = scriptedBatchCounts.poll();
+                            if (counts == null) {
+                                counts = new int[batch.size()];
+                                Arrays.fill(counts, 1);
+                            }
+                            batch.clear();
+                            yield counts;
+                        }
+                        case "clearParameters" -> {
+                            parameters.clear();
+                            yield null;
+                        }
+                        case "clearBatch" -> {
+                            batch.clear();
+                            yield null;
+                        }
+                        case "getGeneratedKeys" -> rows(List.of("GENERATED_KEY"), List.of());
+                        case "close" -> {
+                            closed.add((PreparedStatement) proxy);
+                            yield null;
+                        }
+                        case "isClosed" -> closed.contains(proxy);
+                        case "equals" -> proxy == args[0];
+                        case "hashCode" -> System.identityHashCode(proxy);
+                        default -> defaultValue(method);
+                    };
+                });
+        prepared.add(statement);
+
+        return statement;
+    }
+
+    private ResultSet resultSet(String sql) {
+        for (ScriptedRows scripted : scriptedRows) {
+            if (sql.startsWith(scripted.sqlStart())) {
+                scriptedRows.remove(scripted);
+                return rows(scripted.columns(), scripted.rows());
+            }
+        }
+
+        return rows(List.of(), List.of());
+    }
+
+    private ResultSet rows(List<String> columns, List<Object[]> rows) {
+        int[] row = {-1};
+        boolean[] wasNull = {false};
+
+        return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+
+                    switch (name) {
+                        case "next":
+                            return ++row[0] < rows.size();
+                        case "findColumn":
+                            for (int i = 0; i < columns.size(); i++) {
+                                if (columns.get(i).equalsIgnoreCase((String) args[0])) {
+                                    return i + 1;
+                                }
+                            }
+                            // a query without scripted rows may select any column
+                            if (rows.isEmpty()) {
+                                return 1;
+                            }
+                            throw new SQLException("Unknown column " + args[0]);
+                        case "wasNull":
+                            return wasNull[0];
+                        case "close":
+                        case "clearWarnings":
+                            return null;
+                        case "isClosed":
+                            return false;
+                        default:
+                            break;
+                    }
+
+                    if (!name.startsWith("get") || args == null || !(args[0] instanceof Integer position)) {
+                        return defaultValue(method);
+                    }
+
+                    Object value = rows.get(row[0])[position - 1];
+                    wasNull[0] = value == null;
+
+                    return switch (name) {
+                        case "getString" -> value == null ? null : value.toString();
+                        case "getInt" -> value == null ? 0 : ((Number) value).intValue();
+                        case "getLong" -> value == null ? 0L : ((Number) value).longValue();
+                        case "getDouble" -> value == null ? 0.0 : ((Number) value).doubleValue();
+                        case "getFloat" -> value == null ? 0.0f : ((Number) value).floatValue();
+                        case "getBoolean" -> value != null && (Boolean) value;
+                        default -> value;
+                    };
+                });
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == int[].class) {
+            return new int[0];
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,61 @@
+package ORM;
+
+import Example.Entities.School;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PageTest {
+
+    private static final String SCHOOLS = "select `id`, `name`, `town` from `schools`";
+    private static final List<String> SCHOOL_COLUMNS = List.of("id", "name", "town");
+
+    private final FakeJdbc jdbc = new FakeJdbc();
+    private final EntityManagerImpl entityManager = entityManager();
+
+    private EntityManagerImpl entityManager() {
+        SchemaRegistry schemaRegistry = new SchemaRegistry();
+        schemaRegistry.load(List.of("schools"));
+
+        return new EntityManagerImpl(jdbc.connection(), false, null, schemaRegistry);
+    }
+
+    @Test
+    void pageWithExactlyLimitRowsHasNoNextPage() {
+        jdbc.returnRows(SCHOOLS, SCHOOL_COLUMNS, new Object[]{11, "First", "Sofia"}, new Object[]{12, "Second", "Varna"});
+
+        Page<School> page = entityManager.findPage(School.class, 10, 2);
+
+        assertFalse(page.hasNextPage());
+        assertEquals(List.of(11, 12), page.getContent().stream().map(School::getId).toList());
+        assertEquals(List.of(10L, 3L), jdbc.getExecutions().get(0).parameters().get(0));
+        assertThrows(NoSuchElementException.class, page::nextPage);
+    }
+
+    @Test
+    void extraRowIsDroppedAndMeansThereIsANextPage() {
+        jdbc.returnRows(SCHOOLS, SCHOOL_COLUMNS, new Object[]{11, "First", "Sofia"}, new Object[]{12, "Second", "Varna"},
+                new Object[]{13, "Third", "Ruse"});
+
+        Page<School> page = entityManager.findPage(School.class, 10, 2);
+
+        assertTrue(page.hasNextPage());
+        assertEquals(List.of(11, 12), page.getContent().stream().map(School::getId).toList());
+        assertEquals(12, page.getLastPrimaryKey());
+
+        page.nextPage();
+        assertEquals(List.of(12L, 3L), jdbc.getExecutions().get(1).parameters().get(0));
+    }
+
+    @Test
+    void emptyPageHasNoLastPrimaryKey() {
+        Page<School> page = entityManager.findPage(School.class, 10, 2);
+
+        assertTrue(page.getContent().isEmpty());
+        assertFalse(page.hasNextPage());
+        assertThrows(NoSuchElementException.class, page::getLastPrimaryKey);
+    }
+}
@@ -0,0 +1,80 @@
+package ORM;
+
+import Example.Entities.Course;
+import Example.Entities.School;
+import ORM.Exceptions.EntityManagerException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryTest {
+
+    private static Query<Course> from() {
+        return new Query<>(EntityMetadataRegistry.get(Course.class), null);
+    }
+
+    @Test
+    void selectsAllColumnsWithoutConditions() {
+        assertEquals(EntityMetadataRegistry.get(Course.class).getSelectSql(), from().getSql());
+        assertTrue(from().getParameters().isEmpty());
+    }
+
+    @Test
+    void combinesConditionsOrderingsAndLimit() {
+        Query<Course> query = from()
+                .where("price", Operator.GT, 100)
+                .where("courseTopic", Operator.LIKE, "Java%")
+                .orderBy("name")
+                .orderBy("price", false)
+                .limit(10);
+
+        assertEquals("select `id`, `name`, `course_topic`, `price`, `school_id`, `teacher_id` from `courses`"
+                + " where `price` > ? and `course_topic` like ? order by `name` asc, `price` desc limit ?", query.getSql());
+        assertEquals(List.of(100, "Java%", 10), query.getParameters());
+    }
+
+    @Test
+    void nullValueIsComparedWithIsNull() {
+        Query<Course> query = from().where("courseTopic", Operator.EQ, null).where("name", Operator.NE, null);
+
+        assertEquals(EntityMetadataRegistry.get(Course.class).getSelectSql()
+                + " where `course_topic` is null and `name` is not null", query.getSql());
+        assertTrue(query.getParameters().isEmpty());
+    }
+
+    @Test
+    void foreignKeyIsComparedWithThePrimaryKey() {
+        School school = new School("Coding School", "New York City");
+        school.setId(7);
+
+        Query<Course> query = from().where("school", Operator.EQ, school);
+
+        assertEquals(EntityMetadataRegistry.get(Course.class).getSelectSql() + " where `school_id` = ?", query.getSql());
+        assertEquals(7L, ((Number) query.getParameters().get(0)).longValue());
+    }
+
+    @Test
+    void selectsOnlyTheGivenFields() {
+        Query<Course> query = from().select("name", "price").where("id", Operator.EQ, 524);
+
+        assertEquals("select `name`, `price` from `courses` where `id` = ?", query.getSql());
+    }
+
+    @Test
+    void sameShapeReusesTheSql() {
+        String sql = from().where("price", Operator.LT, 10).getSql();
+
+        assertSame(sql, from().where("price", Operator.LT, 500).getSql());
+    }
+
+    @Test
+    void rejectsInvalidQueries() {
+        assertThrows(EntityManagerException.class, () -> from().where("missing", Operator.EQ, 1));
+        assertThrows(EntityManagerException.class, () -> from().where("price", Operator.IS_NULL, 1));
+        assertThrows(EntityManagerException.class, () -> from().where("price", Operator.GT));
+        assertThrows(IllegalArgumentException.class, () -> from().limit(0));
+        assertThrows(EntityManagerException.class, () -> from().select("name").getResultList());
+    }
+}
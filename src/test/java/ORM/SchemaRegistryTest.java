@@ -0,0 +1,72 @@
+package ORM;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SchemaRegistryTest {
+
+    private final SchemaRegistry registry = new SchemaRegistry();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final Supplier<Collection<String>> loader = () -> {
+        loads.incrementAndGet();
+        return List.of("Schools", "teachers");
+    };
+
+    @Test
+    void loadsTableNamesOnce() {
+        assertTrue(registry.contains("schools", loader));
+        assertTrue(registry.contains("TEACHERS", loader));
+        assertFalse(registry.contains("courses", loader));
+
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void keepsNamesCurrentWhenTablesAreCreatedOrDropped() {
+        registry.contains("schools", loader);
+
+        registry.add("courses");
+        registry.remove("schools");
+
+        assertTrue(registry.contains("courses", loader));
+        assertFalse(registry.contains("schools", loader));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void changesBeforeLoadingAreTakenFromTheDatabase() {
+        registry.add("courses");
+
+        assertFalse(registry.contains("courses", loader));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void reloadsAfterInvalidation() {
+        registry.contains("schools", loader);
+        registry.remove("schools");
+
+        registry.invalidate();
+
+        assertTrue(registry.contains("schools", loader));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void loadReplacesAllNames() {
+        registry.contains("schools", loader);
+
+        registry.load(List.of("courses"));
+
+        assertFalse(registry.contains("schools", loader));
+        assertTrue(registry.contains("courses", loader));
+        assertEquals(1, loads.get());
+    }
+}
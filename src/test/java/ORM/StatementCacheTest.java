@@ -0,0 +1,74 @@
+package ORM;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatementCacheTest {
+
+    private final FakeJdbc jdbc = new FakeJdbc();
+    private final StatementCache cache = new StatementCache(jdbc.connection());
+
+    @Test
+    void reusesStatementAfterLeaseIsClosed() throws SQLException {
+        PreparedStatement first;
+        try (StatementLease lease = cache.lease("SELECT 1", false)) {
+            first = lease.getStatement();
+        }
+
+        try (StatementLease lease = cache.lease("SELECT 1", false)) {
+            assertSame(first, lease.getStatement());
+        }
+
+        assertEquals(1, jdbc.getPrepared().size());
+        assertEquals(0, cache.getOpenStatementCount());
+    }
+
+    @Test
+    void preparesNewStatementWhileCachedOneIsInUse() throws SQLException {
+        try (StatementLease outer = cache.lease("SELECT 1", false);
+             StatementLease inner = cache.lease("SELECT 1", false)) {
+            assertNotSame(outer.getStatement(), inner.getStatement());
+            assertEquals(2, cache.getOpenStatementCount());
+        }
+
+        assertEquals(0, cache.getOpenStatementCount());
+        // only one statement per SQL is kept, the other one is closed
+        assertEquals(1, jdbc.getPrepared().stream().filter(jdbc::isClosed).count());
+    }
+
+    @Test
+    void countsStatementsThatAreNotGivenBack() throws SQLException {
+        StatementLease leaked = cache.lease("SELECT 1", false);
+        cache.leaseOnce("SELECT 2").close();
+
+        assertEquals(1, cache.getOpenStatementCount());
+
+        leaked.close();
+        leaked.close();
+        assertEquals(0, cache.getOpenStatementCount());
+    }
+
+    @Test
+    void closesStatementsUsedOnce() throws SQLException {
+        PreparedStatement statement;
+        try (StatementLease lease = cache.leaseOnce("CREATE TABLE t (id INT)")) {
+            statement = lease.getStatement();
+        }
+
+        assertTrue(jdbc.isClosed(statement));
+    }
+
+    @Test
+    void closeClosesCachedStatements() throws SQLException {
+        cache.lease("SELECT 1", false).close();
+        cache.lease("SELECT 2", true).close();
+
+        cache.close();
+
+        assertTrue(jdbc.getPrepared().stream().allMatch(jdbc::isClosed));
+    }
+}
@@ -0,0 +1,104 @@
+package ORM;
+
+import Example.Entities.Course;
+import Example.Entities.School;
+import Example.Entities.Teacher;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UnitOfWorkTest {
+
+    private final UnitOfWork unitOfWork = new UnitOfWork();
+
+    @Test
+    void queuesPersistsInOrderAndOnlyOnce() {
+        School first = new School("First", "Sofia");
+        School second = new School("Second", "Plovdiv");
+
+        unitOfWork.persist(first);
+        unitOfWork.persist(second);
+        unitOfWork.persist(first);
+
+        assertEquals(List.of(first, second), unitOfWork.takePersists());
+        assertTrue(unitOfWork.isEmpty());
+    }
+
+    @Test
+    void removingUnsavedEntityCancelsItsPersist() {
+        School school = new School("Coding School", "New York City");
+
+        unitOfWork.persist(school);
+        unitOfWork.remove(new UnitOfWork.Removal(School.class, 0, school, true));
+
+        assertTrue(unitOfWork.isEmpty());
+    }
+
+    @Test
+    void removingSavedEntityCancelsItsPersistAndIsQueued() {
+        School school = saved(new School("Coding School", "New York City"), 5);
+
+        unitOfWork.persist(school);
+        unitOfWork.remove(new UnitOfWork.Removal(School.class, 5, school, true));
+
+        assertTrue(unitOfWork.takePersists().isEmpty());
+        assertEquals(1, unitOfWork.takeRemovals().size());
+    }
+
+    @Test
+    void removingByPrimaryKeyCancelsPersistOfTheSameRow() {
+        unitOfWork.persist(saved(new School("Coding School", "New York City"), 5));
+        unitOfWork.remove(new UnitOfWork.Removal(School.class, 5, null, false));
+
+        assertTrue(unitOfWork.takePersists().isEmpty());
+        assertEquals(List.of(new UnitOfWork.Removal(School.class, 5, null, false)), unitOfWork.takeRemovals());
+    }
+
+    @Test
+    void persistingCancelsRemovalOfTheSameRow() {
+        unitOfWork.remove(new UnitOfWork.Removal(School.class, 5, null, false));
+
+        School school = saved(new School("Coding School", "New York City"), 5);
+        unitOfWork.persist(school);
+
+        assertTrue(unitOfWork.takeRemovals().isEmpty());
+        assertEquals(List.of(school), unitOfWork.takePersists());
+    }
+
+    @Test
+    void writesOfOtherRowsAreKept() {
+        School school = saved(new School("Coding School", "New York City"), 5);
+        Teacher teacher = new Teacher("Georgi", "Georgiev", 32, school);
+        teacher.setId(5);
+
+        unitOfWork.persist(school);
+        unitOfWork.persist(new School("Unsaved", "Varna"));
+        unitOfWork.remove(new UnitOfWork.Removal(Teacher.class, 5, teacher, true));
+        unitOfWork.remove(new UnitOfWork.Removal(School.class, 6, null, false));
+
+        assertEquals(2, unitOfWork.takePersists().size());
+        assertEquals(2, unitOfWork.takeRemovals().size());
+    }
+
+    @Test
+    void sortsEntityClassesAfterTheClassesTheyReference() {
+        List<Class<?>> sorted = EntityManagerImpl.sortByDependencies(
+                List.of(Course.class, Teacher.class, School.class));
+
+        assertEquals(List.of(School.class, Teacher.class, Course.class), sorted);
+    }
+
+    @Test
+    void sortingIgnoresClassesThatAreNotWritten() {
+        List<Class<?>> sorted = EntityManagerImpl.sortByDependencies(List.of(Teacher.class, Course.class));
+
+        assertEquals(List.of(Teacher.class, Course.class), sorted);
+    }
+
+    private static School saved(School school, int id) {
+        school.setId(id);
+        return school;
+    }
+}